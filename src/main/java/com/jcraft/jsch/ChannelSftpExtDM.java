@@ -21,6 +21,9 @@ package com.jcraft.jsch;
  */
 import java.io.*;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.Vector;
 
 public class ChannelSftpExtDM extends ChannelSession {
@@ -171,7 +174,8 @@ public class ChannelSftpExtDM extends ChannelSession {
 	private String fEncoding = UTF8;
 	private boolean fEncoding_is_utf8 = true;
 
-	private RequestQueue rq = new RequestQueue (16);
+	private int bulk_requests = 16;
+	private RequestQueue rq = new RequestQueue (bulk_requests);
 
 	/**
 	 * Specify how many requests may be sent at any one time.
@@ -182,6 +186,7 @@ public class ChannelSftpExtDM extends ChannelSession {
 	 */
 	public void setBulkRequests (int bulk_requests) throws JSchException {
 		if (bulk_requests > 0) {
+			this.bulk_requests = bulk_requests;
 			rq = new RequestQueue (bulk_requests);
 		} else {
 			throw new JSchException ("setBulkRequests: "
@@ -199,6 +204,96 @@ public class ChannelSftpExtDM extends ChannelSession {
 		return rq.size ();
 	}
 
+	private volatile boolean auto_tune_requests = false;
+	private final RequestTuner tuner = new RequestTuner ();
+
+	/**
+	 * Make downloads adjust the number of outstanding read requests to the
+	 * link. The round-trip time of every read request and the delivery rate
+	 * are measured; the number of requests grows while the round-trip time
+	 * stays close to the minimum seen, and is cut back to the
+	 * bandwidth-delay product when the round-trip time shows queueing.
+	 * The local channel window is enlarged to <code>max_bytes_in_flight</code>
+	 * if it is smaller, so the window does not cap the transfer first.
+	 *
+	 * When disabled, the fixed limit of {@link #setBulkRequests(int)} applies
+	 * again.
+	 *
+	 * @param auto_tune
+	 * @param max_bytes_in_flight memory ceiling for outstanding read data
+	 */
+	public void setAutoTuneRequests (boolean auto_tune, int max_bytes_in_flight) throws JSchException {
+		if (auto_tune) {
+			int max_requests = max_bytes_in_flight / LOCAL_MAXIMUM_PACKET_SIZE;
+			if (max_requests <= 0) {
+				throw new JSchException ("setAutoTuneRequests: "
+						+ max_bytes_in_flight + " must be at least " + LOCAL_MAXIMUM_PACKET_SIZE + ".");
+			}
+			rq = new RequestQueue (max_requests);
+			if (max_bytes_in_flight > lwsize_max) {
+				setLocalWindowSizeMax (max_bytes_in_flight);
+			}
+		} else if (auto_tune_requests) {
+			rq = new RequestQueue (bulk_requests);
+		}
+		auto_tune_requests = auto_tune;
+	}
+
+	/**
+	 * @return true if the number of outstanding read requests is tuned automatically
+	 */
+	public boolean isAutoTuneRequests () {
+		return auto_tune_requests;
+	}
+
+	/**
+	 * This method will return the number of read requests the current or the
+	 * last download has kept outstanding.
+	 *
+	 * @return
+	 */
+	public int getRequestDepth () {
+		return tuner.depth;
+	}
+
+	/**
+	 * @return smoothed round-trip time of read requests in nanoseconds, 0 if
+	 * not measured yet
+	 */
+	public long getMeasuredRtt () {
+		return tuner.srtt;
+	}
+
+	/**
+	 * @return minimum round-trip time of read requests in nanoseconds, 0 if
+	 * not measured yet
+	 */
+	public long getMinRtt () {
+		return tuner.min_rtt == Long.MAX_VALUE ? 0 : tuner.min_rtt;
+	}
+
+	/**
+	 * @return read delivery rate in bytes per second, 0 if not measured yet
+	 */
+	public long getMeasuredDeliveryRate () {
+		return (long) (tuner.delivery_rate * 1e9);
+	}
+
+	private volatile long acknowledged_offset = 0;
+
+	/**
+	 * This method will return the file offset up to which the current or the
+	 * last get or put has completed: for a get, the offset up to which data
+	 * has been received and written to the destination; for a put, the
+	 * offset up to which every write has been acknowledged by the server.
+	 * After a lost connection, the transfer may be resumed from there.
+	 *
+	 * @return
+	 */
+	public long getAcknowledgedOffset () {
+		return acknowledged_offset;
+	}
+
 	public ChannelSftpExtDM () {
 		super ();
 		setLocalWindowSizeMax (LOCAL_WINDOW_SIZE_MAX);
@@ -495,6 +590,80 @@ public class ChannelSftpExtDM extends ChannelSession {
 		}
 	}
 
+	/**
+	 * Sends data from a local file to <code>dst</code> file. The data is read
+	 * from a FileChannel at explicit positions straight into the packet
+	 * buffer, without a stream in between. The <code>mode</code> should be
+	 * <code>OVERWRITE</code> or <code>RESUME</code>; <code>APPEND</code> falls
+	 * back to the stream-based transfer.
+	 *
+	 * @param src source file
+	 * @param dst destination file
+	 * @param monitor progress monitor
+	 * @param mode how data should be added to dst
+	 * @return number of bytes sent
+	 */
+	public long put (java.nio.file.Path src, String dst,
+			SftpProgressMonitor monitor, int mode) throws SftpException {
+
+		try (FileChannel fc = FileChannel.open (src, java.nio.file.StandardOpenOption.READ)) {
+			((Channel.MyPipedInputStream) io_in).updateReadSide ();
+
+			if (mode == APPEND) {
+				long size = fc.size ();
+				put (Channels.newInputStream (fc), dst, monitor, mode);
+				return size;
+			}
+
+			long size_of_src = fc.size ();
+			long size_of_dst = 0;
+			if (mode == RESUME) {
+				try {
+					size_of_dst = stat (dst).getSize ();
+				} catch (SftpException eee) {
+					if (eee.id != SSH_FX_NO_SUCH_FILE) {
+						throw eee;
+					}
+				}
+				if (size_of_src < size_of_dst) {
+					throw new SftpException (SSH_FX_FAILURE,
+							"failed to resume for " + dst);
+				}
+				if (size_of_src == size_of_dst) {
+					return 0;
+				}
+			}
+
+			if (monitor != null) {
+				monitor.init (SftpProgressMonitor.PUT, src.toString (), dst, size_of_src);
+				if (mode == RESUME) {
+					monitor.count (size_of_dst);
+				}
+			}
+
+			long written;
+			byte[] handle = openForWrite (dst, mode == OVERWRITE);
+			try {
+				written = putRange (handle, fc, size_of_dst, size_of_src - size_of_dst, monitor);
+			} finally {
+				closeHandle (handle);
+			}
+
+			if (monitor != null) {
+				monitor.end ();
+			}
+			return written;
+		} catch (Exception e) {
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, e.toString (), (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, e.toString ());
+		}
+	}
+
 	public void put (InputStream src, String dst) throws SftpException {
 		put (src, dst, null, OVERWRITE);
 	}
@@ -624,6 +793,9 @@ public class ChannelSftpExtDM extends ChannelSession {
 			int _s = 0;
 			int _datalen = 0;
 
+			acknowledged_offset = offset;
+			WriteTracker tracker = new WriteTracker ();
+
 			if (!dontcopy) {  // This case will not work anymore.
 				_datalen = data.length;
 			} else {
@@ -670,12 +842,15 @@ public class ChannelSftpExtDM extends ChannelSession {
 									}
 								}
 								ackcount++;
+								tracker.acked (_ackid);
 							} else {
 								break;
 							}
 						}
 					}
-					foo -= sendWRITE (handle, offset, data, 0, foo);
+					int sent = sendWRITE (handle, offset, data, 0, foo);
+					tracker.sent (seq - 1, offset + sent);
+					foo -= sent;
 				}
 				offset += count;
 				if (monitor != null && !monitor.count (count)) {
@@ -684,10 +859,11 @@ public class ChannelSftpExtDM extends ChannelSession {
 			}
 			int _ackcount = seq - startid;
 			while (_ackcount > ackcount) {
-				if (!checkStatus (null, header)) {
+				if (!checkStatus (ackid, header)) {
 					break;
 				}
 				ackcount++;
+				tracker.acked (ackid[0]);
 			}
 			if (monitor != null) {
 				monitor.end ();
@@ -704,6 +880,232 @@ public class ChannelSftpExtDM extends ChannelSession {
 		}
 	}
 
+	/**
+	 * Open a remote file for writing at any offset. Unless
+	 * <code>truncate</code> is set, the file is neither truncated nor
+	 * appended to, so several channels may open it at once and write
+	 * disjoint ranges with {@link #putRange(byte[], java.nio.channels.FileChannel, long, long, com.jcraft.jsch.SftpProgressMonitor)}.
+	 *
+	 * @param dst
+	 * @param truncate
+	 * @return the handle, to be closed with {@link #closeHandle(byte[])}
+	 * @throws SftpException
+	 */
+	public byte[] openForWrite (String dst, boolean truncate) throws SftpException {
+		try {
+			((Channel.MyPipedInputStream) io_in).updateReadSide ();
+
+			dst = remoteAbsolutePath (dst);
+			dst = isUnique (dst);
+			byte[] dstb = Util.str2byte (dst, fEncoding);
+
+			if (truncate) {
+				sendOPENW (dstb);
+			} else {
+				sendOPEN (dstb, SSH_FXF_WRITE | SSH_FXF_CREAT);
+			}
+
+			Header header = new Header ();
+			header = header (buf, header);
+			int length = header.length;
+			int type = header.type;
+
+			fill (buf, length);
+
+			if (type != SSH_FXP_STATUS && type != SSH_FXP_HANDLE) {
+				throw new SftpException (SSH_FX_FAILURE, "invalid type=" + type);
+			}
+			if (type == SSH_FXP_STATUS) {
+				int i = buf.getInt ();
+				throwStatusError (buf, i);
+			}
+			return buf.getString ();         // handle
+		} catch (Exception e) {
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, e.toString (), (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, e.toString ());
+		}
+	}
+
+	/**
+	 * Write the byte range [offset, offset + length) of a local file to the
+	 * same range of a remote file opened with {@link #openForWrite(java.lang.String, boolean)}.
+	 * Up to {@link #getBulkRequests()} writes are kept outstanding; the
+	 * method returns after every write has been acknowledged. The handle is
+	 * left open.
+	 *
+	 * @param handle
+	 * @param src
+	 * @param offset
+	 * @param length
+	 * @param monitor may be null; it is counted but not initialized or ended
+	 * @return number of bytes written: less than <code>length</code> if the
+	 * monitor has cancelled the transfer
+	 * @throws SftpException
+	 */
+	public long putRange (byte[] handle, FileChannel src, long offset, long length,
+			SftpProgressMonitor monitor) throws SftpException {
+		java.util.List<long[]> ranges = new java.util.ArrayList<long[]> (1);
+		ranges.add (new long[]{offset, length});
+		return putRanges (handle, src, ranges, monitor);
+	}
+
+	/**
+	 * Write several byte ranges of a local file to the same ranges of a remote
+	 * file, like {@link #putRange(byte[], java.nio.channels.FileChannel, long, long, com.jcraft.jsch.SftpProgressMonitor)}.
+	 * The writes of all the ranges share one window of outstanding requests.
+	 *
+	 * @param handle
+	 * @param src
+	 * @param ranges {offset, length} pairs
+	 * @param monitor may be null; it is counted but not initialized or ended
+	 * @return number of bytes written
+	 * @throws SftpException
+	 */
+	public long putRanges (byte[] handle, FileChannel src, java.util.List<long[]> ranges,
+			SftpProgressMonitor monitor) throws SftpException {
+		try {
+			((Channel.MyPipedInputStream) io_in).updateReadSide ();
+
+			Header header = new Header ();
+
+			byte[] data = obuf.buffer;
+			int _s = 5 + 13 + 21 + handle.length;
+			int _datalen = obuf.buffer.length - _s - Session.buffer_margin;
+
+			int startid = seq;
+			int ackcount = 0;
+			int bulk_requests = rq.size ();
+
+			long written = 0;
+			int range = 0;
+			long position = 0;
+			long end = 0;
+
+			loop:
+			while (true) {
+				if (position >= end) {
+					if (range >= ranges.size ()) {
+						break;
+					}
+					position = ranges.get (range)[0];
+					end = position + ranges.get (range)[1];
+					range++;
+					continue;
+				}
+
+				int count = (int) Math.min (_datalen, end - position);
+
+				ByteBuffer bb = ByteBuffer.wrap (data, _s, count);
+				while (bb.hasRemaining ()) {
+					long read_position = position + (bb.position () - _s);
+					if (src.read (bb, read_position) < 0) {
+						throw new SftpException (SSH_FX_FAILURE, "local file ended at " + read_position);
+					}
+				}
+
+				int foo = count;
+				while (foo > 0) {
+					if ((seq - 1) == startid
+							|| ((seq - startid) - ackcount) >= bulk_requests) {
+						while (((seq - startid) - ackcount) >= bulk_requests) {
+							if (this.rwsize >= foo) {
+								break;
+							}
+							if (checkStatus (ackid, header)) {
+								int _ackid = ackid[0];
+								if (startid > _ackid || _ackid > seq - 1) {
+									throw new SftpException (SSH_FX_FAILURE, "ack error: startid=" + startid + " seq=" + seq + " _ackid=" + _ackid);
+								}
+								ackcount++;
+							} else {
+								break;
+							}
+						}
+					}
+					foo -= sendWRITE (handle, position, data, 0, foo);
+				}
+				position += count;
+				written += count;
+				if (monitor != null && !monitor.count (count)) {
+					break loop;
+				}
+			}
+			int _ackcount = seq - startid;
+			while (_ackcount > ackcount) {
+				if (!checkStatus (null, header)) {
+					break;
+				}
+				ackcount++;
+			}
+			return written;
+		} catch (Exception e) {
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, e.toString (), (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, e.toString ());
+		}
+	}
+
+	/**
+	 * Set the size of a remote file, cutting it or extending it with zeros
+	 *
+	 * @param path
+	 * @param size
+	 * @throws SftpException
+	 */
+	public void truncate (String path, long size) throws SftpException {
+		try {
+			((Channel.MyPipedInputStream) io_in).updateReadSide ();
+
+			path = remoteAbsolutePath (path);
+			path = isUnique (path);
+
+			SftpATTRS attr = _stat (path);
+			attr.setFLAGS (0);
+			attr.setSIZE (size);
+			_setStat (path, attr);
+		} catch (Exception e) {
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, "", (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, "");
+		}
+	}
+
+	/**
+	 * Close a handle returned by {@link #openForWrite(java.lang.String, boolean)}
+	 * or {@link #openForRead(java.lang.String)}
+	 *
+	 * @param handle
+	 * @throws SftpException
+	 */
+	public void closeHandle (byte[] handle) throws SftpException {
+		try {
+			((Channel.MyPipedInputStream) io_in).updateReadSide ();
+
+			_sendCLOSE (handle, new Header ());
+		} catch (Exception e) {
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, e.toString (), (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, e.toString ());
+		}
+	}
+
 	public OutputStream put (String dst) throws SftpException {
 		return put (dst, (SftpProgressMonitor) null, OVERWRITE);
 	}
@@ -1009,30 +1411,152 @@ public class ChannelSftpExtDM extends ChannelSession {
 		}
 	}
 
-	public void get (String src, OutputStream dst) throws SftpException {
-		get (src, dst, null, OVERWRITE, 0);
-	}
-
-	public void get (String src, OutputStream dst,
-			SftpProgressMonitor monitor) throws SftpException {
-		get (src, dst, monitor, OVERWRITE, 0);
-	}
+	/**
+	 * Downloads <code>src</code> file into a local file. The data is written
+	 * from the packet buffer straight into a FileChannel at explicit
+	 * positions, without a stream in between, and the local file is first
+	 * extended to the remote size. The <code>mode</code> should be
+	 * <code>OVERWRITE</code> or <code>RESUME</code>.
+	 *
+	 * @param src source file
+	 * @param dst destination file
+	 * @param monitor progress monitor
+	 * @param mode how data should be added to dst
+	 * @return number of bytes received
+	 */
+	public long get (String src, java.nio.file.Path dst,
+			SftpProgressMonitor monitor, int mode) throws SftpException {
 
-	public void get (String src, OutputStream dst,
-			SftpProgressMonitor monitor, int mode, long skip) throws SftpException {
-//System.err.println("get: "+src+", "+dst);
+		boolean _dstExist = java.nio.file.Files.exists (dst);
+		FileChannel fc = null;
+		long size_of_dst = 0;
+		acknowledged_offset = 0;
 		try {
 			((Channel.MyPipedInputStream) io_in).updateReadSide ();
 
 			src = remoteAbsolutePath (src);
 			src = isUnique (src);
 
-			if (monitor != null) {
-				SftpATTRS attr = _stat (src);
-				monitor.init (SftpProgressMonitor.GET, src, "??", attr.getSize ());
-				if (mode == RESUME) {
-					monitor.count (skip);
-				}
+			SftpATTRS attr = _stat (src);
+			if (attr.isDir ()) {
+				throw new SftpException (SSH_FX_FAILURE,
+						"not supported to get directory " + src);
+			}
+			long size_of_src = attr.getSize ();
+
+			fc = FileChannel.open (dst, java.nio.file.StandardOpenOption.CREATE,
+					java.nio.file.StandardOpenOption.WRITE);
+
+			if (mode == RESUME) {
+				size_of_dst = fc.size ();
+				if (size_of_dst > size_of_src) {
+					throw new SftpException (SSH_FX_FAILURE,
+							"failed to resume for " + dst);
+				}
+				if (size_of_dst == size_of_src) {
+					return 0;
+				}
+			}
+
+			if (monitor != null) {
+				monitor.init (SftpProgressMonitor.GET, src, dst.toString (), size_of_src);
+				if (mode == RESUME) {
+					monitor.count (size_of_dst);
+				}
+			}
+
+			// Preallocate, so the file is not extended by every write
+			if (fc.size () > size_of_src) {
+				fc.truncate (size_of_src);
+			} else if (fc.size () < size_of_src) {
+				fc.write (ByteBuffer.allocate (1), size_of_src - 1);
+			}
+
+			// src is unquoted already: the handle is opened here, so the name
+			// is not unquoted again as getRange (String, ...) would do
+			byte[] handle = _openForRead (src);
+			long written;
+			try {
+				written = _getRange (null, handle, fc, null, size_of_dst, size_of_src - size_of_dst, monitor);
+			} catch (SftpException e) {
+				try {
+					_sendCLOSE (handle, new Header ());
+				} catch (Exception ee) {
+				}
+				throw e;
+			}
+			_sendCLOSE (handle, new Header ());
+			if (size_of_dst + written < size_of_src) {
+				// The remote file has become shorter, or the monitor has cancelled
+				fc.truncate (size_of_dst + written);
+			}
+
+			if (monitor != null) {
+				monitor.end ();
+			}
+			return written;
+		} catch (Exception e) {
+			if (fc != null) {
+				// Keep what has been received, but do not leave the
+				// preallocated tail behind, so a later RESUME does not take it
+				// for received data
+				try {
+					fc.truncate (Math.max (size_of_dst, acknowledged_offset));
+				} catch (IOException ee) {
+				}
+				try {
+					fc.close ();
+				} catch (IOException ee) {
+				}
+				fc = null;
+			}
+			if (!_dstExist) {
+				File _dstFile = dst.toFile ();
+				if (_dstFile.exists () && _dstFile.length () == 0) {
+					_dstFile.delete ();
+				}
+			}
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, "", (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, "");
+		} finally {
+			if (fc != null) {
+				try {
+					fc.close ();
+				} catch (IOException ee) {
+				}
+			}
+		}
+	}
+
+	public void get (String src, OutputStream dst) throws SftpException {
+		get (src, dst, null, OVERWRITE, 0);
+	}
+
+	public void get (String src, OutputStream dst,
+			SftpProgressMonitor monitor) throws SftpException {
+		get (src, dst, monitor, OVERWRITE, 0);
+	}
+
+	public void get (String src, OutputStream dst,
+			SftpProgressMonitor monitor, int mode, long skip) throws SftpException {
+//System.err.println("get: "+src+", "+dst);
+		try {
+			((Channel.MyPipedInputStream) io_in).updateReadSide ();
+
+			src = remoteAbsolutePath (src);
+			src = isUnique (src);
+
+			if (monitor != null) {
+				SftpATTRS attr = _stat (src);
+				monitor.init (SftpProgressMonitor.GET, src, "??", attr.getSize ());
+				if (mode == RESUME) {
+					monitor.count (skip);
+				}
 			}
 			_get (src, dst, monitor, mode, skip);
 		} catch (Exception e) {
@@ -1076,15 +1600,20 @@ public class ChannelSftpExtDM extends ChannelSession {
 			if (mode == RESUME) {
 				offset += skip;
 			}
+			acknowledged_offset = offset;
 
 			int request_max = 1;
 			rq.init ();
+			tuner.start ();
 			long request_offset = offset;
 
 			int request_len = buf.buffer.length - 13;
 			if (server_version == 0) {
 				request_len = 1024;
 			}
+			if (auto_tune_requests) {
+				request_max = Math.min (tuner.depth, rq.size ());
+			}
 
 			loop:
 			while (true) {
@@ -1138,66 +1667,655 @@ public class ChannelSftpExtDM extends ChannelSession {
 				 */
 				int optional_data = length - length_of_data;
 
-				int foo = length_of_data;
-				while (foo > 0) {
-					int bar = foo;
-					if (bar > buf.buffer.length) {
-						bar = buf.buffer.length;
-					}
-					int data_len = io_in.read (buf.buffer, 0, bar);
-					if (data_len < 0) {
-						break loop;
-					}
+				int foo = length_of_data;
+				while (foo > 0) {
+					int bar = foo;
+					if (bar > buf.buffer.length) {
+						bar = buf.buffer.length;
+					}
+					int data_len = io_in.read (buf.buffer, 0, bar);
+					if (data_len < 0) {
+						break loop;
+					}
+
+					dst.write (buf.buffer, 0, data_len);
+
+					offset += data_len;
+					acknowledged_offset = offset;
+					foo -= data_len;
+
+					if (monitor != null) {
+						if (!monitor.count (data_len)) {
+							skip (foo);
+							if (optional_data > 0) {
+								skip (optional_data);
+							}
+							break loop;
+						}
+					}
+
+				}
+				//System.err.println("length: "+length);  // length should be 0
+
+				if (optional_data > 0) {
+					skip (optional_data);
+				}
+
+				request_max = nextRequestMax (request_max, rr, length_of_data, request_len);
+
+				if (length_of_data < rr.length) {  //
+					rq.cancel (header, buf);
+					sendREAD (handle, rr.offset + length_of_data, (int) (rr.length - length_of_data), rq);
+					request_offset = rr.offset + rr.length;
+				}
+			}
+			dst.flush ();
+
+			if (monitor != null) {
+				monitor.end ();
+			}
+
+			rq.cancel (header, buf);
+
+			_sendCLOSE (handle, header);
+		} catch (Exception e) {
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, "", (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, "");
+		}
+	}
+
+	/**
+	 * Download the byte range [offset, offset + length) of a remote file into
+	 * the same range of a local file. The data is written with positional
+	 * writes, so several channels may fill disjoint ranges of one file at
+	 * once.
+	 *
+	 * @param src
+	 * @param dst
+	 * @param offset
+	 * @param length
+	 * @param monitor may be null; it is counted but not initialized or ended
+	 * @return number of bytes written: less than <code>length</code> if the
+	 * remote file ends earlier or the monitor has cancelled the transfer
+	 * @throws SftpException
+	 */
+	public long getRange (String src, FileChannel dst, long offset, long length,
+			SftpProgressMonitor monitor) throws SftpException {
+		return _getRange (src, null, dst, null, offset, length, monitor);
+	}
+
+	/**
+	 * Download the byte range [offset, offset + dst.remaining ()) of a remote
+	 * file straight into a buffer, from its position on. The position and
+	 * limit of the buffer are left unchanged.
+	 *
+	 * @param src
+	 * @param dst
+	 * @param offset
+	 * @param monitor may be null; it is counted but not initialized or ended
+	 * @return number of bytes read: less than <code>dst.remaining ()</code>
+	 * if the remote file ends earlier or the monitor has cancelled the
+	 * transfer
+	 * @throws SftpException
+	 */
+	public int getRange (String src, ByteBuffer dst, long offset,
+			SftpProgressMonitor monitor) throws SftpException {
+		return (int) _getRange (src, null, null, dst, offset, dst.remaining (), monitor);
+	}
+
+	/**
+	 * Download the byte range [offset, offset + dst.remaining ()) of a file
+	 * opened with {@link #openForRead(java.lang.String)} into a buffer, like
+	 * {@link #getRange(java.lang.String, java.nio.ByteBuffer, long, com.jcraft.jsch.SftpProgressMonitor)}.
+	 * The handle is left open.
+	 *
+	 * @param handle
+	 * @param dst
+	 * @param offset
+	 * @return number of bytes read: less than <code>dst.remaining ()</code>
+	 * if the remote file ends earlier
+	 * @throws SftpException
+	 */
+	public int getRange (byte[] handle, ByteBuffer dst, long offset) throws SftpException {
+		return (int) _getRange (null, handle, null, dst, offset, dst.remaining (), null);
+	}
+
+	/**
+	 * Open <code>src</code> file for reading. The handle may be read from
+	 * with {@link #getRange(byte[], java.nio.ByteBuffer, long)} and stat'ed
+	 * with {@link #fstat(byte[])} while it stays open, even if the file is
+	 * renamed or removed meanwhile.
+	 *
+	 * @param src
+	 * @return the handle, to be closed with {@link #closeHandle(byte[])}
+	 * @throws SftpException
+	 */
+	public byte[] openForRead (String src) throws SftpException {
+		try {
+			((Channel.MyPipedInputStream) io_in).updateReadSide ();
+
+			src = remoteAbsolutePath (src);
+			src = isUnique (src);
+
+			return _openForRead (src);
+		} catch (Exception e) {
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, "", (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, "");
+		}
+	}
+
+	/**
+	 * Get the attributes of an open file
+	 *
+	 * @param handle
+	 * @return
+	 * @throws SftpException
+	 */
+	public SftpATTRS fstat (byte[] handle) throws SftpException {
+		try {
+			((Channel.MyPipedInputStream) io_in).updateReadSide ();
+		} catch (IOException e) {
+			throw new SftpException (SSH_FX_FAILURE, "", e);
+		}
+		return _fstat (handle);
+	}
+
+	private byte[] _openForRead (String src) throws Exception {
+		byte[] srcb = Util.str2byte (src, fEncoding);
+		sendOPENR (srcb);
+
+		Header header = new Header ();
+		header = header (buf, header);
+		int length = header.length;
+		int type = header.type;
+
+		fill (buf, length);
+
+		if (type != SSH_FXP_STATUS && type != SSH_FXP_HANDLE) {
+			throw new SftpException (SSH_FX_FAILURE, "");
+		}
+
+		if (type == SSH_FXP_STATUS) {
+			int i = buf.getInt ();
+			throwStatusError (buf, i);
+		}
+
+		return buf.getString ();         // handle
+	}
+
+	private long _getRange (String src, byte[] handle, FileChannel dst, ByteBuffer bufferDst, long offset, long length,
+			SftpProgressMonitor monitor) throws SftpException {
+		try {
+			((Channel.MyPipedInputStream) io_in).updateReadSide ();
+
+			boolean own_handle = handle == null;
+			if (own_handle) {
+				src = remoteAbsolutePath (src);
+				src = isUnique (src);
+				handle = _openForRead (src);
+			}
+
+			Header header = new Header ();
+			int _length;
+			int type;
+
+			long end = offset + length;
+			long written = 0;
+			// The data is written in request order, so it is contiguous
+			acknowledged_offset = offset;
+
+			int request_max = 1;
+			rq.init ();
+			tuner.start ();
+			long request_offset = offset;
+
+			int request_len = buf.buffer.length - 13;
+			if (server_version == 0) {
+				request_len = 1024;
+			}
+			if (auto_tune_requests) {
+				request_max = Math.min (tuner.depth, rq.size ());
+			}
+
+			loop:
+			while (true) {
+
+				while (rq.count () < request_max && request_offset < end) {
+					int len = (int) Math.min (request_len, end - request_offset);
+					sendREAD (handle, request_offset, len, rq);
+					request_offset += len;
+				}
+
+				if (rq.count () == 0) {
+					break;
+				}
+
+				header = header (buf, header);
+				_length = header.length;
+				type = header.type;
+
+				RequestQueue.Request rr = null;
+				try {
+					rr = rq.get (header.rid);
+				} catch (RequestQueue.OutOfOrderException e) {
+					request_offset = e.offset;
+					skip (header.length);
+					rq.cancel (header, buf);
+					continue;
+				}
+
+				if (type == SSH_FXP_STATUS) {
+					fill (buf, _length);
+					int i = buf.getInt ();
+					if (i == SSH_FX_EOF) {
+						break loop;
+					}
+					throwStatusError (buf, i);
+				}
+
+				if (type != SSH_FXP_DATA) {
+					break loop;
+				}
+
+				buf.rewind ();
+				fill (buf.buffer, 0, 4);
+				_length -= 4;
+				int length_of_data = buf.getInt ();   // length of data 
+				int optional_data = _length - length_of_data;
+
+				long rr_offset = rr.offset;
+				long rr_length = rr.length;
+				long position = rr_offset;
+
+				int foo = length_of_data;
+				while (foo > 0) {
+					int bar = foo;
+					if (bar > buf.buffer.length) {
+						bar = buf.buffer.length;
+					}
+					int data_len = io_in.read (buf.buffer, 0, bar);
+					if (data_len < 0) {
+						break loop;
+					}
+
+					if (dst != null) {
+						ByteBuffer bb = ByteBuffer.wrap (buf.buffer, 0, data_len);
+						while (bb.hasRemaining ()) {
+							position += dst.write (bb, position);
+						}
+					} else {
+						ByteBuffer bb = bufferDst.duplicate ();
+						bb.position (bufferDst.position () + (int) (position - offset));
+						bb.put (buf.buffer, 0, data_len);
+						position += data_len;
+					}
+
+					written += data_len;
+					acknowledged_offset = offset + written;
+					foo -= data_len;
+
+					if (monitor != null) {
+						if (!monitor.count (data_len)) {
+							skip (foo);
+							if (optional_data > 0) {
+								skip (optional_data);
+							}
+							break loop;
+						}
+					}
+				}
+
+				if (optional_data > 0) {
+					skip (optional_data);
+				}
+
+				request_max = nextRequestMax (request_max, rr, length_of_data, request_len);
+
+				if (length_of_data < rr_length) {  //
+					rq.cancel (header, buf);
+					sendREAD (handle, rr_offset + length_of_data, (int) (rr_length - length_of_data), rq);
+					request_offset = rr_offset + rr_length;
+				}
+			}
+
+			rq.cancel (header, buf);
+
+			if (own_handle) {
+				_sendCLOSE (handle, header);
+			}
+
+			return written;
+		} catch (Exception e) {
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, "", (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, "");
+		}
+	}
+
+	/**
+	 * Opens <code>src</code> file for random access reads. The returned
+	 * channel keeps one handle open and reads from any position; while reads
+	 * are sequential, up to <code>read_ahead</code> requests are sent ahead
+	 * of the position, and after a seek nothing is prefetched until the reads
+	 * are sequential again.
+	 * Like the stream returned by {@link #get(String)}, the channel must be
+	 * closed before this ChannelSftpExtDM is used for anything else.
+	 *
+	 * @param src source file
+	 * @param read_ahead maximum number of read requests sent ahead of the
+	 * position
+	 * @return a read-only channel
+	 */
+	public java.nio.channels.SeekableByteChannel openSeekable (String src, int read_ahead) throws SftpException {
+		try {
+			((Channel.MyPipedInputStream) io_in).updateReadSide ();
+
+			src = remoteAbsolutePath (src);
+			src = isUnique (src);
+
+			byte[] srcb = Util.str2byte (src, fEncoding);
+			sendOPENR (srcb);
+
+			Header header = new Header ();
+			header = header (buf, header);
+			int length = header.length;
+			int type = header.type;
+
+			fill (buf, length);
+
+			if (type != SSH_FXP_STATUS && type != SSH_FXP_HANDLE) {
+				throw new SftpException (SSH_FX_FAILURE, "");
+			}
+			if (type == SSH_FXP_STATUS) {
+				int i = buf.getInt ();
+				throwStatusError (buf, i);
+			}
+
+			return new SeekableHandle (buf.getString (), Math.max (0, read_ahead));
+		} catch (Exception e) {
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, "", (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, "");
+		}
+	}
+
+	public java.nio.channels.SeekableByteChannel openSeekable (String src) throws SftpException {
+		return openSeekable (src, rq.size ());
+	}
+
+	/**
+	 * A read-only SeekableByteChannel over one open file handle. Replies are
+	 * kept by file offset, so data read ahead is served to later reads, and
+	 * replies to requests that a seek has made useless are dropped.
+	 */
+	private class SeekableHandle implements java.nio.channels.SeekableByteChannel {
+
+		private class PendingRead {
+
+			long offset;
+			int length;
+			boolean discard = false;
+		}
+
+		private final byte[] handle;
+		private final int read_ahead;
+		private final int request_len;
+		private final java.util.LinkedHashMap<Integer, PendingRead> pending = new java.util.LinkedHashMap<Integer, PendingRead> ();
+		private final java.util.TreeMap<Long, byte[]> received = new java.util.TreeMap<Long, byte[]> ();
+		private final Header header = new Header ();
+
+		private boolean open = true;
+		private long position = 0;
+		private long last_end = -1;
+		private int sequential_reads = 0;
+		private long prefetch_offset = 0;
+		private long eof = Long.MAX_VALUE;
+
+		SeekableHandle (byte[] handle, int read_ahead) {
+			this.handle = handle;
+			this.read_ahead = read_ahead;
+			this.request_len = server_version == 0 ? 1024 : buf.buffer.length - 13;
+		}
+
+		public synchronized int read (ByteBuffer dst) throws IOException {
+			if (!open) {
+				throw new java.nio.channels.ClosedChannelException ();
+			}
+			if (!dst.hasRemaining ()) {
+				return 0;
+			}
+
+			if (position == last_end) {
+				if (sequential_reads < 30) {
+					sequential_reads++;
+				}
+			} else {
+				sequential_reads = 0;
+				discardUseless ();
+			}
+
+			java.util.Map.Entry<Long, byte[]> chunk;
+			while ((chunk = receivedAt (position)) == null) {
+				if (position >= eof) {
+					return -1;
+				}
+				if (!isPending (position)) {
+					sendRead (position);
+				}
+				receive ();
+			}
+
+			int from = (int) (position - chunk.getKey ());
+			int n = Math.min (dst.remaining (), chunk.getValue ().length - from);
+			dst.put (chunk.getValue (), from, n);
+			position += n;
+			last_end = position;
+
+			prefetch ();
+			return n;
+		}
 
-					dst.write (buf.buffer, 0, data_len);
+		public int write (ByteBuffer src) throws IOException {
+			throw new java.nio.channels.NonWritableChannelException ();
+		}
 
-					offset += data_len;
-					foo -= data_len;
+		public synchronized long position () throws IOException {
+			if (!open) {
+				throw new java.nio.channels.ClosedChannelException ();
+			}
+			return position;
+		}
 
-					if (monitor != null) {
-						if (!monitor.count (data_len)) {
-							skip (foo);
-							if (optional_data > 0) {
-								skip (optional_data);
-							}
-							break loop;
-						}
-					}
+		public synchronized java.nio.channels.SeekableByteChannel position (long new_position) throws IOException {
+			if (!open) {
+				throw new java.nio.channels.ClosedChannelException ();
+			}
+			if (new_position < 0) {
+				throw new IllegalArgumentException ("negative position: " + new_position);
+			}
+			position = new_position;
+			return this;
+		}
 
+		public synchronized long size () throws IOException {
+			if (!open) {
+				throw new java.nio.channels.ClosedChannelException ();
+			}
+			while (!pending.isEmpty ()) {
+				receive ();
+			}
+			try {
+				long size = _fstat (handle).getSize ();
+				if (size > eof) {
+					// The file has grown since the end was reached
+					eof = Long.MAX_VALUE;
 				}
-				//System.err.println("length: "+length);  // length should be 0
+				return size;
+			} catch (SftpException e) {
+				throw new IOException (e.toString (), e);
+			}
+		}
 
-				if (optional_data > 0) {
-					skip (optional_data);
+		public java.nio.channels.SeekableByteChannel truncate (long size) throws IOException {
+			throw new java.nio.channels.NonWritableChannelException ();
+		}
+
+		public synchronized boolean isOpen () {
+			return open;
+		}
+
+		public synchronized void close () throws IOException {
+			if (!open) {
+				return;
+			}
+			open = false;
+			received.clear ();
+			try {
+				while (!pending.isEmpty ()) {
+					receive ();
 				}
+				_sendCLOSE (handle, header);
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException (e.toString (), e);
+			}
+		}
 
-				if (length_of_data < rr.length) {  //
-					rq.cancel (header, buf);
-					sendREAD (handle, rr.offset + length_of_data, (int) (rr.length - length_of_data), rq);
-					request_offset = rr.offset + rr.length;
+		private java.util.Map.Entry<Long, byte[]> receivedAt (long offset) {
+			java.util.Map.Entry<Long, byte[]> entry = received.floorEntry (offset);
+			if (entry != null && entry.getKey () + entry.getValue ().length > offset) {
+				return entry;
+			}
+			return null;
+		}
+
+		private boolean isPending (long offset) {
+			for (PendingRead read : pending.values ()) {
+				if (!read.discard && read.offset <= offset && offset < read.offset + read.length) {
+					return true;
 				}
+			}
+			return false;
+		}
 
-				if (request_max < rq.size ()) {
-					request_max++;
+		/**
+		 * After a seek, prefetched data behind the position will not be read
+		 */
+		private void discardUseless () {
+			for (PendingRead read : pending.values ()) {
+				if (read.offset + read.length <= position) {
+					read.discard = true;
 				}
 			}
-			dst.flush ();
+			prefetch_offset = position;
+		}
 
-			if (monitor != null) {
-				monitor.end ();
+		private void prefetch () throws IOException {
+			if (sequential_reads == 0) {
+				return;
 			}
+			// Ramp up while the reads stay sequential
+			int depth = Math.min (read_ahead, 1 << sequential_reads);
 
-			rq.cancel (header, buf);
+			int ahead = received.tailMap (position).size ();
+			for (PendingRead read : pending.values ()) {
+				if (!read.discard && read.offset >= position) {
+					ahead++;
+				}
+			}
+			if (prefetch_offset < position) {
+				prefetch_offset = position;
+			}
+			while (ahead < depth && prefetch_offset < eof) {
+				if (receivedAt (prefetch_offset) == null && !isPending (prefetch_offset)) {
+					sendRead (prefetch_offset);
+					ahead++;
+				} else {
+					prefetch_offset += request_len;
+				}
+			}
+		}
 
-			_sendCLOSE (handle, header);
-		} catch (Exception e) {
-			if (e instanceof SftpException) {
-				throw (SftpException) e;
+		private void sendRead (long offset) throws IOException {
+			try {
+				sendREAD (handle, offset, request_len);
+			} catch (Exception e) {
+				throw new IOException (e.toString (), e);
 			}
-			if (e instanceof Throwable) {
-				throw new SftpException (SSH_FX_FAILURE, "", (Throwable) e);
+			PendingRead read = new PendingRead ();
+			read.offset = offset;
+			read.length = request_len;
+			pending.put (seq - 1, read);
+			prefetch_offset = Math.max (prefetch_offset, offset + request_len);
+		}
+
+		private void receive () throws IOException {
+			header (buf, header);
+			PendingRead read = pending.remove (header.rid);
+			if (read == null) {
+				throw new IOException ("unexpected reply id " + header.rid);
+			}
+
+			if (header.type == SSH_FXP_STATUS) {
+				fill (buf, header.length);
+				int i = buf.getInt ();
+				if (i == SSH_FX_EOF) {
+					eof = Math.min (eof, read.offset);
+					return;
+				}
+				throw new IOException ("read at " + read.offset + " failed with status " + i);
+			}
+			if (header.type != SSH_FXP_DATA) {
+				throw new IOException ("invalid type=" + header.type);
+			}
+
+			buf.rewind ();
+			fill (buf.buffer, 0, 4);
+			int length_of_data = buf.getInt ();
+			int optional_data = header.length - 4 - length_of_data;
+			byte[] data = new byte[length_of_data];
+			fill (data, 0, length_of_data);
+			if (optional_data > 0) {
+				skip (optional_data);
+			}
+
+			if (length_of_data == 0) {
+				eof = Math.min (eof, read.offset);
+				return;
+			}
+			if (!open || read.discard || read.offset >= eof) {
+				return;
+			}
+			received.put (read.offset, data);
+			// Drop the chunks behind the position first, then the farthest
+			// ahead, so the chunk at the position stays
+			while (received.size () > read_ahead + 4) {
+				java.util.Map.Entry<Long, byte[]> first = received.firstEntry ();
+				if (first.getKey () + first.getValue ().length <= position) {
+					received.pollFirstEntry ();
+				} else {
+					received.pollLastEntry ();
+				}
 			}
-			throw new SftpException (SSH_FX_FAILURE, "");
 		}
 	}
 
@@ -1217,6 +2335,7 @@ public class ChannelSftpExtDM extends ChannelSession {
 			int id;
 			long offset;
 			long length;
+			long sent_nanos;
 		}
 
 		Request[] rrq = null;
@@ -1245,6 +2364,7 @@ public class ChannelSftpExtDM extends ChannelSession {
 			rrq[tail].id = id;
 			rrq[tail].offset = offset;
 			rrq[tail].length = length;
+			rrq[tail].sent_nanos = System.nanoTime ();
 			count++;
 		}
 
@@ -1315,6 +2435,106 @@ public class ChannelSftpExtDM extends ChannelSession {
 		}
 	}
 
+	private int nextRequestMax (int request_max, RequestQueue.Request rr, int length_of_data, int request_len) {
+		if (!auto_tune_requests) {
+			if (request_max < rq.size ()) {
+				request_max++;
+			}
+			tuner.depth = request_max;
+			return request_max;
+		}
+		tuner.sample (System.nanoTime () - rr.sent_nanos, length_of_data, request_len, rq.size ());
+		return tuner.depth;
+	}
+
+	/**
+	 * Tracks the outstanding writes of a put in the order they were sent, so
+	 * the offset up to which all the writes have been acknowledged is known
+	 * even if the server acknowledges them out of order.
+	 */
+	private class WriteTracker {
+
+		private final java.util.ArrayDeque<long[]> outstanding = new java.util.ArrayDeque<long[]> ();
+		private final java.util.HashSet<Integer> acked_early = new java.util.HashSet<Integer> ();
+
+		void sent (int id, long end) {
+			outstanding.addLast (new long[]{id, end});
+		}
+
+		void acked (int id) {
+			acked_early.add (id);
+			while (!outstanding.isEmpty () && acked_early.remove ((int) outstanding.peekFirst ()[0])) {
+				acknowledged_offset = outstanding.pollFirst ()[1];
+			}
+		}
+	}
+
+	/**
+	 * Keeps the number of outstanding read requests near the bandwidth-delay
+	 * product. While the smoothed round-trip time stays below 1.5 times the
+	 * minimum one, the link is not saturated and the depth grows by one per
+	 * response (doubling per round trip). When it exceeds twice the minimum,
+	 * requests are queueing, and the depth is cut to the delivery rate times
+	 * the minimum round-trip time.
+	 */
+	private static class RequestTuner {
+
+		volatile int depth = 1;
+		volatile long srtt = 0;
+		volatile long min_rtt = Long.MAX_VALUE;
+		volatile double delivery_rate = 0;   // bytes per nanosecond
+
+		private long window_start = 0;
+		private long window_bytes = 0;
+
+		/**
+		 * Start a transfer from scratch: the round-trip times of an earlier
+		 * transfer may have been measured on another file or link state
+		 */
+		void start () {
+			depth = 1;
+			srtt = 0;
+			min_rtt = Long.MAX_VALUE;
+			delivery_rate = 0;
+			window_start = 0;
+			window_bytes = 0;
+		}
+
+		void sample (long rtt, int bytes, int request_len, int max_depth) {
+			if (rtt <= 0) {
+				rtt = 1;
+			}
+			if (rtt < min_rtt) {
+				min_rtt = rtt;
+			}
+			srtt = (srtt == 0) ? rtt : (7 * srtt + rtt) / 8;
+
+			long now = System.nanoTime ();
+			if (window_start == 0) {
+				window_start = now;
+			} else {
+				window_bytes += bytes;
+				long elapsed = now - window_start;
+				if (elapsed >= Math.max (srtt, 1000000L)) {
+					delivery_rate = (double) window_bytes / elapsed;
+					window_start = now;
+					window_bytes = 0;
+				}
+			}
+
+			int _depth = depth;
+			if (srtt < min_rtt + min_rtt / 2) {
+				_depth++;
+			} else if (srtt > 2 * min_rtt && delivery_rate > 0) {
+				int bdp_depth = (int) Math.ceil (delivery_rate * min_rtt / request_len) + 1;
+				if (bdp_depth < _depth) {
+					_depth = bdp_depth;
+				}
+			}
+			depth = Math.max (1, Math.min (_depth, max_depth));
+		}
+	}
+
 	public InputStream get (String src) throws SftpException {
 		return get (src, null, 0L);
 	}
@@ -1372,6 +2592,7 @@ public class ChannelSftpExtDM extends ChannelSession {
 			final byte[] handle = buf.getString ();         // handle
 
 			rq.init ();
+			tuner.start ();
 
 			java.io.InputStream in = new java.io.InputStream () {
 				long offset = skip;
@@ -1380,7 +2601,7 @@ public class ChannelSftpExtDM extends ChannelSession {
 				byte[] _data = new byte[1];
 				byte[] rest_byte = new byte[1024];
 				Header header = new Header ();
-				int request_max = 1;
+				int request_max = auto_tune_requests ? Math.min (tuner.depth, rq.size ()) : 1;
 				long request_offset = offset;
 
 				public int read () throws java.io.IOException {
@@ -1545,6 +2766,8 @@ public class ChannelSftpExtDM extends ChannelSession {
 							io_in.skip (optional_data);
 						}
 
+						request_max = nextRequestMax (request_max, rr, length_of_data, buf.buffer.length - 13);
+
 						if (length_of_data < rr.length) {  //
 							rq.cancel (header, buf);
 							try {
@@ -1557,10 +2780,6 @@ public class ChannelSftpExtDM extends ChannelSession {
 							request_offset = rr.offset + rr.length;
 						}
 
-						if (request_max < rq.size ()) {
-							request_max++;
-						}
-
 						if (monitor != null) {
 							if (!monitor.count (i)) {
 								close ();
@@ -2262,6 +3481,80 @@ public class ChannelSftpExtDM extends ChannelSession {
 		}
 	}
 
+	/**
+	 * Create several directories with pipelined SSH_FXP_MKDIR requests. Up
+	 * to {@link #getBulkRequests()} requests are outstanding at once, so a
+	 * long list costs a few round trips instead of one per directory. The
+	 * server may handle the requests in any order, so a parent directory has
+	 * to be created by an earlier call than its children. A directory that
+	 * already exists is not an error.
+	 *
+	 * @param paths
+	 * @throws SftpException for the first path that could not be created
+	 */
+	public void mkdirs (java.util.List<String> paths) throws SftpException {
+		try {
+			((Channel.MyPipedInputStream) io_in).updateReadSide ();
+
+			int n = paths.size ();
+			boolean[] failed = new boolean[n];
+			int window = rq.size ();
+			int startid = seq;
+			int sent = 0;
+			int received = 0;
+
+			Header header = new Header ();
+
+			while (received < n) {
+				while (sent < n && sent - received < window) {
+					sendMKDIR (Util.str2byte (remoteAbsolutePath (paths.get (sent)), fEncoding), null);
+					sent++;
+				}
+
+				header = header (buf, header);
+				int length = header.length;
+				int type = header.type;
+
+				fill (buf, length);
+
+				if (type != SSH_FXP_STATUS) {
+					throw new SftpException (SSH_FX_FAILURE, "");
+				}
+				int index = header.rid - startid;
+				if (index < 0 || index >= n) {
+					throw new SftpException (SSH_FX_FAILURE, "mkdirs: unknown request id " + header.rid);
+				}
+				if (buf.getInt () != SSH_FX_OK) {
+					failed[index] = true;
+				}
+				received++;
+			}
+
+			for (int i = 0; i < n; i++) {
+				if (!failed[i]) {
+					continue;
+				}
+				String path = remoteAbsolutePath (paths.get (i));
+				SftpATTRS attr = null;
+				try {
+					attr = _stat (path);
+				} catch (SftpException e) {
+				}
+				if (attr == null || !attr.isDir ()) {
+					throw new SftpException (SSH_FX_FAILURE, "failed to create directory " + path);
+				}
+			}
+		} catch (Exception e) {
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, "", (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, "");
+		}
+	}
+
 	public SftpATTRS stat (String path) throws SftpException {
 		try {
 			((Channel.MyPipedInputStream) io_in).updateReadSide ();
@@ -2319,6 +3612,37 @@ public class ChannelSftpExtDM extends ChannelSession {
 		return _stat (Util.str2byte (path, fEncoding));
 	}
 
+	private SftpATTRS _fstat (byte[] handle) throws SftpException {
+		try {
+
+			sendFSTAT (handle);
+
+			Header header = new Header ();
+			header = header (buf, header);
+			int length = header.length;
+			int type = header.type;
+
+			fill (buf, length);
+
+			if (type != SSH_FXP_ATTRS) {
+				if (type == SSH_FXP_STATUS) {
+					int i = buf.getInt ();
+					throwStatusError (buf, i);
+				}
+				throw new SftpException (SSH_FX_FAILURE, "");
+			}
+			return SftpATTRS.getATTR (buf);
+		} catch (Exception e) {
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, "", (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, "");
+		}
+	}
+
 	public SftpStatVFS statVFS (String path) throws SftpException {
 		try {
 			((Channel.MyPipedInputStream) io_in).updateReadSide ();
@@ -3154,6 +4478,89 @@ public class ChannelSftpExtDM extends ChannelSession {
 		return (String) extensions.get (key);
 	}
 
+	/**
+	 * @return true if the server has advertised the check-file extension
+	 */
+	public boolean isCheckFileSupported () {
+		return getExtension ("check-file") != null || getExtension ("check-file-name") != null;
+	}
+
+	/**
+	 * Have the server hash a whole remote file, using the check-file
+	 * extension (check-file-name request).
+	 *
+	 * @param path
+	 * @param algorithms comma-separated hash algorithms in the order of
+	 * preference, e.g. "sha256,md5"
+	 * @return the algorithm chosen by the server and the lowercase hex hash
+	 * @throws SftpException SSH_FX_OP_UNSUPPORTED if the server does not
+	 * support check-file
+	 */
+	public String[] checkFile (String path, String algorithms) throws SftpException {
+		if (!isCheckFileSupported ()) {
+			throw new SftpException (SSH_FX_OP_UNSUPPORTED,
+					"check-file is not supported");
+		}
+
+		try {
+			((Channel.MyPipedInputStream) io_in).updateReadSide ();
+
+			path = remoteAbsolutePath (path);
+			path = isUnique (path);
+
+			byte[] request = Util.str2byte ("check-file-name");
+			byte[] pathb = Util.str2byte (path, fEncoding);
+			byte[] algorithmsb = Util.str2byte (algorithms);
+
+			packet.reset ();
+			int len = 5 + 4 + request.length + 4 + pathb.length + 4 + algorithmsb.length + 8 + 8 + 4;
+			putHEAD (SSH_FXP_EXTENDED, len);
+			buf.putInt (seq++);
+			buf.putString (request);
+			buf.putString (pathb);
+			buf.putString (algorithmsb);
+			buf.putLong (0);                // start offset
+			buf.putLong (0);                // length, 0 for the whole file
+			buf.putInt (0);                 // block size, 0 for one hash
+			getSession ().write (packet, this, len + 4);
+
+			Header header = new Header ();
+			header = header (buf, header);
+			int length = header.length;
+			int type = header.type;
+
+			fill (buf, length);
+
+			if (type != (SSH_FXP_EXTENDED_REPLY & 0xff)) {
+				if (type == SSH_FXP_STATUS) {
+					int i = buf.getInt ();
+					throwStatusError (buf, i);
+				}
+				throw new SftpException (SSH_FX_FAILURE, "");
+			}
+
+			buf.getString ();               // "check-file"
+			String algorithm = Util.byte2str (buf.getString ());
+			byte[] hash = new byte[buf.getLength ()];
+			buf.getByte (hash);
+
+			StringBuilder hex = new StringBuilder (hash.length * 2);
+			for (int i = 0; i < hash.length; i++) {
+				hex.append (Character.forDigit ((hash[i] >> 4) & 0xf, 16));
+				hex.append (Character.forDigit (hash[i] & 0xf, 16));
+			}
+			return new String[]{algorithm, hex.toString ()};
+		} catch (Exception e) {
+			if (e instanceof SftpException) {
+				throw (SftpException) e;
+			}
+			if (e instanceof Throwable) {
+				throw new SftpException (SSH_FX_FAILURE, "", (Throwable) e);
+			}
+			throw new SftpException (SSH_FX_FAILURE, "");
+		}
+	}
+
 	public String realpath (String path) throws SftpException {
 		try {
 			byte[] _path = _realpath (remoteAbsolutePath (path));
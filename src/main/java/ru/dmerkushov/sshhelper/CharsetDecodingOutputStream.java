@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Output stream that decodes the bytes written into it and appends the
+ * characters to a <code>StringBuilder</code>. One <code>CharsetDecoder</code>
+ * is used for the whole stream, so a multibyte character split between two
+ * writes is decoded correctly, and no objects are allocated per write.
+ *
+ * Malformed and unmappable input is replaced, like <code>new String (byte[], charset)</code>
+ * does. The decoder is flushed when the stream is closed, so the result is
+ * complete only after {@link #close()}.
+ *
+ * @author Dmitriy Merkushov
+ */
+class CharsetDecodingOutputStream extends OutputStream {
+
+	static final int BUFFER_SIZE = 8192;
+	private static final int MAX_POOLED_CHAR_BUFFERS = 64;
+
+	private static final ConcurrentLinkedQueue<CharBuffer> charBufferPool = new ConcurrentLinkedQueue<> ();
+
+	private final StringBuilder target;
+	private final CharsetDecoder decoder;
+	private final ByteBuffer in = ByteBuffer.allocate (BUFFER_SIZE);
+	private CharBuffer out;
+
+	CharsetDecodingOutputStream (StringBuilder target, Charset charset) {
+		this.target = target;
+		this.decoder = charset.newDecoder ()
+				.onMalformedInput (CodingErrorAction.REPLACE)
+				.onUnmappableCharacter (CodingErrorAction.REPLACE);
+		this.out = borrowCharBuffer ();
+	}
+
+	@Override
+	public void write (int b) throws IOException {
+		ensureOpen ();
+		in.put ((byte) b);
+		if (!in.hasRemaining ()) {
+			decodeInput (false);
+		}
+	}
+
+	@Override
+	public void write (byte[] b, int off, int len) throws IOException {
+		ensureOpen ();
+		while (len > 0) {
+			int chunk = Math.min (len, in.remaining ());
+			in.put (b, off, chunk);
+			off += chunk;
+			len -= chunk;
+			decodeInput (false);
+		}
+	}
+
+	@Override
+	public void close () throws IOException {
+		if (out == null) {
+			return;
+		}
+		decodeInput (true);
+		while (decoder.flush (out).isOverflow ()) {
+			drainOutput ();
+		}
+		drainOutput ();
+
+		CharBuffer charBuffer = out;
+		out = null;
+		returnCharBuffer (charBuffer);
+	}
+
+	private void decodeInput (boolean endOfInput) {
+		in.flip ();
+		while (decoder.decode (in, out, endOfInput).isOverflow ()) {
+			drainOutput ();
+		}
+		drainOutput ();
+		// An incomplete multibyte sequence stays in the buffer for the next write
+		in.compact ();
+	}
+
+	private void drainOutput () {
+		out.flip ();
+		target.append (out.array (), out.arrayOffset () + out.position (), out.remaining ());
+		out.clear ();
+	}
+
+	private void ensureOpen () throws IOException {
+		if (out == null) {
+			throw new IOException ("stream already closed");
+		}
+	}
+
+	private static CharBuffer borrowCharBuffer () {
+		CharBuffer charBuffer = charBufferPool.poll ();
+		if (charBuffer == null) {
+			charBuffer = CharBuffer.allocate (BUFFER_SIZE);
+		}
+		return charBuffer;
+	}
+
+	private static void returnCharBuffer (CharBuffer charBuffer) {
+		// The size check is racy, but the pool only has to stay roughly bounded
+		if (charBufferPool.size () < MAX_POOLED_CHAR_BUFFERS) {
+			charBuffer.clear ();
+			charBufferPool.offer (charBuffer);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelExec;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A command running in a JSch exec channel. The output is pushed into the
+ * given streams by the JSch session thread, so several commands may run on
+ * one session at the same time without a thread per command.
+ *
+ * @author Dmitriy Merkushov
+ */
+class ExecChannel {
+
+	private final Session session;
+	private final ChannelExec channelExec;
+	private final ExecOutputSink stdoutSink;
+	private final ExecOutputSink stderrSink;
+	private final AtomicBoolean finished = new AtomicBoolean (false);
+	private final Runnable finishListener;
+
+	private ExecChannel (Session session, ChannelExec channelExec, OutputStream stdout, OutputStream stderr, Runnable finishListener) {
+		this.session = session;
+		this.channelExec = channelExec;
+		this.finishListener = finishListener;
+		this.stdoutSink = new ExecOutputSink (stdout, null);
+		// The stderr sink is closed when the channel is disconnected on
+		// SSH_MSG_CHANNEL_CLOSE, and the exit status always comes before that
+		this.stderrSink = new ExecOutputSink (stderr, new Runnable () {
+			@Override
+			public void run () {
+				finish ();
+			}
+		});
+	}
+
+	/**
+	 * Open an exec channel and start the command in it
+	 *
+	 * @param session
+	 * @param command
+	 * @param stdout receives the stdout of the command. May be null
+	 * @param stderr receives the stderr of the command. May be null
+	 * @param finishListener called once from the JSch session thread when the
+	 * channel is closed. May be null
+	 * @return
+	 * @throws JSchException if the channel cannot be opened or the command
+	 * cannot be started. The finish listener is not called in this case
+	 */
+	static ExecChannel start (Session session, String command, OutputStream stdout, OutputStream stderr, Runnable finishListener) throws JSchException {
+		ChannelExec channelExec = (ChannelExec) session.openChannel ("exec");
+		channelExec.setCommand (command);
+
+		ExecChannel execChannel = new ExecChannel (session, channelExec, stdout, stderr, finishListener);
+		channelExec.setOutputStream (execChannel.stdoutSink);
+		channelExec.setErrStream (execChannel.stderrSink);
+
+		try {
+			channelExec.connect ();
+		} catch (JSchException | RuntimeException ex) {
+			execChannel.finished.set (true);
+			channelExec.disconnect ();
+			throw ex;
+		}
+		return execChannel;
+	}
+
+	/**
+	 * Wait until the server closes the channel
+	 *
+	 * @return exit status of the command, or -1 if the server has not sent it
+	 * @throws IOException if writing to stdout or stderr failed
+	 * @throws InterruptedException
+	 */
+	int await () throws IOException, InterruptedException {
+		try {
+			return await (0);
+		} catch (TimeoutException ex) {
+			throw new IllegalStateException (ex);
+		}
+	}
+
+	/**
+	 * Wait until the server closes the channel. The channel is disconnected
+	 * on timeout
+	 *
+	 * @param timeoutMillis 0 to wait without timeout
+	 * @return exit status of the command, or -1 if the server has not sent it
+	 * @throws IOException if writing to stdout or stderr failed
+	 * @throws InterruptedException
+	 * @throws TimeoutException if the command has not finished in time
+	 */
+	int await (long timeoutMillis) throws IOException, InterruptedException, TimeoutException {
+		long deadline = System.nanoTime () + TimeUnit.MILLISECONDS.toNanos (timeoutMillis);
+		try {
+			long waitNanos = TimeUnit.SECONDS.toNanos (1);
+			if (timeoutMillis > 0) {
+				waitNanos = Math.min (waitNanos, deadline - System.nanoTime ());
+			}
+			while (!stderrSink.awaitClose (waitNanos, TimeUnit.NANOSECONDS)) {
+				if (!session.isConnected ()) {
+					break;
+				}
+				if (timeoutMillis > 0) {
+					long remaining = deadline - System.nanoTime ();
+					if (remaining <= 0) {
+						throw new TimeoutException ("Command has not finished in " + timeoutMillis + " ms");
+					}
+					waitNanos = Math.min (TimeUnit.SECONDS.toNanos (1), remaining);
+				}
+			}
+		} finally {
+			channelExec.disconnect ();
+		}
+
+		if (stdoutSink.getFailure () != null) {
+			throw stdoutSink.getFailure ();
+		}
+		if (stderrSink.getFailure () != null) {
+			throw stderrSink.getFailure ();
+		}
+
+		return channelExec.getExitStatus ();
+	}
+
+	/**
+	 * Disconnect the channel without waiting for the command
+	 */
+	void abort () {
+		channelExec.disconnect ();
+	}
+
+	private void finish () {
+		if (finished.compareAndSet (false, true) && finishListener != null) {
+			finishListener.run ();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Output stream handed to a JSch exec channel as its stdout or stderr. JSch
+ * writes the channel data into it from the session thread as soon as it
+ * arrives, and closes it on remote EOF (stdout) or when the channel is
+ * disconnected (stderr), so the caller can block on {@link #awaitClose(long, java.util.concurrent.TimeUnit)}
+ * instead of polling the channel.
+ *
+ * A null target discards the data. An IOException thrown by the target is
+ * remembered and reported through {@link #getFailure()} rather than thrown
+ * back into the JSch session thread, which would tear the whole session down.
+ *
+ * @author Dmitriy Merkushov
+ */
+class ExecOutputSink extends OutputStream {
+
+	private final OutputStream target;
+	private final CountDownLatch closed = new CountDownLatch (1);
+	private final Runnable closeListener;
+	private volatile IOException failure = null;
+
+	ExecOutputSink (OutputStream target, Runnable closeListener) {
+		this.target = target;
+		this.closeListener = closeListener;
+	}
+
+	@Override
+	public void write (int b) throws IOException {
+		if (target == null || failure != null) {
+			return;
+		}
+		try {
+			target.write (b);
+		} catch (IOException ex) {
+			failure = ex;
+		}
+	}
+
+	@Override
+	public void write (byte[] b, int off, int len) throws IOException {
+		if (target == null || failure != null) {
+			return;
+		}
+		try {
+			target.write (b, off, len);
+		} catch (IOException ex) {
+			failure = ex;
+		}
+	}
+
+	@Override
+	public void flush () throws IOException {
+		if (target == null || failure != null) {
+			return;
+		}
+		try {
+			target.flush ();
+		} catch (IOException ex) {
+			failure = ex;
+		}
+	}
+
+	@Override
+	public void close () throws IOException {
+		if (closed.getCount () == 0) {
+			return;
+		}
+		flush ();
+		closed.countDown ();
+		if (closeListener != null) {
+			closeListener.run ();
+		}
+	}
+
+	boolean isClosed () {
+		return closed.getCount () == 0;
+	}
+
+	boolean awaitClose (long timeout, TimeUnit unit) throws InterruptedException {
+		return closed.await (timeout, unit);
+	}
+
+	IOException getFailure () {
+		return failure;
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.Session;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes checksums of remote files with the coreutils checksum tools run
+ * over exec, many files per command, and of local files for comparison.
+ *
+ * @author Dmitriy Merkushov
+ */
+class RemoteChecksums {
+
+	/**
+	 * Commands are kept well below the usual ARG_MAX
+	 */
+	static final int MAX_COMMAND_LENGTH = 64 * 1024;
+
+	/**
+	 * Compute checksums of remote files. The paths are passed to
+	 * <code>tool</code> (e.g. <code>sha256sum</code>) in as few commands as
+	 * the command length allows, and the output is parsed as it arrives.
+	 *
+	 * @param session
+	 * @param tool
+	 * @param paths
+	 * @param charset charset of the remote filenames
+	 * @return lowercase hex checksums by path; a file that cannot be read is
+	 * missing from the map
+	 * @throws SSHHelperException
+	 */
+	static Map<String, String> compute (Session session, String tool, List<String> paths, String charset) throws SSHHelperException {
+		final Map<String, String> result = new HashMap<> ();
+
+		SSHLineListener stdout = new SSHLineListener () {
+			@Override
+			public void line (String line) {
+				parseLine (line, result);
+			}
+		};
+		SSHLineListener stderr = new SSHLineListener () {
+			@Override
+			public void line (String line) {
+				SSHHelper.getLoggerWrapper ().warning (line);
+			}
+		};
+
+		int i = 0;
+		while (i < paths.size ()) {
+			StringBuilder command = new StringBuilder (tool).append (" --");
+			do {
+				command.append (' ').append (shellQuote (paths.get (i)));
+				i++;
+			} while (i < paths.size () && command.length () + paths.get (i).length () + 3 < MAX_COMMAND_LENGTH);
+
+			SSHHelper.streamCommand (session, command.toString (), stdout, stderr, charset);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Parse a line of coreutils checksum output: the checksum, a space, a
+	 * space or an asterisk, and the filename. A line that starts with a
+	 * backslash has the backslashes and newlines in its filename escaped
+	 *
+	 * @param line
+	 * @param result
+	 */
+	static void parseLine (String line, Map<String, String> result) {
+		boolean escaped = line.startsWith ("\\");
+		if (escaped) {
+			line = line.substring (1);
+		}
+
+		int space = line.indexOf (' ');
+		if (space <= 0 || line.length () < space + 2) {
+			return;
+		}
+		String checksum = line.substring (0, space).toLowerCase ();
+		String name = line.substring (space + 2);
+
+		if (escaped) {
+			StringBuilder sb = new StringBuilder (name.length ());
+			for (int j = 0; j < name.length (); j++) {
+				char c = name.charAt (j);
+				if (c == '\\' && j + 1 < name.length ()) {
+					char next = name.charAt (++j);
+					sb.append (next == 'n' ? '\n' : next);
+				} else {
+					sb.append (c);
+				}
+			}
+			name = sb.toString ();
+		}
+
+		result.put (name, checksum);
+	}
+
+	/**
+	 * Quote a string for a POSIX shell
+	 *
+	 * @param s
+	 * @return
+	 */
+	static String shellQuote (String s) {
+		return "'" + s.replace ("'", "'\\''") + "'";
+	}
+
+	/**
+	 * Compute the checksum of a local file
+	 *
+	 * @param file
+	 * @param algorithm a MessageDigest algorithm name, e.g. SHA-256
+	 * @return lowercase hex checksum
+	 * @throws SSHHelperException
+	 */
+	static String local (File file, String algorithm) throws SSHHelperException {
+		try (InputStream in = new FileInputStream (file)) {
+			MessageDigest digest = MessageDigest.getInstance (algorithm);
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read (buffer)) >= 0) {
+				digest.update (buffer, 0, n);
+			}
+			return toHex (digest.digest ());
+		} catch (IOException | NoSuchAlgorithmException ex) {
+			throw new SSHHelperException (ex);
+		}
+	}
+
+	static String toHex (byte[] bytes) {
+		StringBuilder sb = new StringBuilder (bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append (Character.forDigit ((b >> 4) & 0xf, 16));
+			sb.append (Character.forDigit (b & 0xf, 16));
+		}
+		return sb.toString ();
+	}
+}
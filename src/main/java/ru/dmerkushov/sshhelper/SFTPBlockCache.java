@@ -0,0 +1,404 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelSftpExtDM;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory cache of blocks of remote files, for jobs that read the same
+ * regions of the same files again and again.
+ *
+ * Blocks are kept by host, canonical path, size, modification time and
+ * block offset, and evicted least recently used first when the cached bytes
+ * exceed the budget. Every read stats the file; when the size or
+ * modification time has changed since the last read, the blocks of the old
+ * version are dropped.
+ *
+ * A file read by different relative paths or through symbolic links is
+ * cached once: a name is resolved with REALPATH on its first read, and the
+ * canonical path is remembered until the file cannot be stat'ed by it or
+ * the name is invalidated.
+ *
+ * The cache may be shared by several threads, each reading with its own
+ * channel.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SFTPBlockCache {
+
+	public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+	private final long maxBytes;
+	private final int blockSize;
+
+	private final LinkedHashMap<BlockKey, byte[]> blocks = new LinkedHashMap<> (16, 0.75f, true);
+	private final Map<String, long[]> versions = new HashMap<> ();
+	private final Map<String, String> canonicalPaths = new HashMap<> ();
+	private long currentBytes = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	/**
+	 * @param maxBytes budget for the cached blocks
+	 */
+	public SFTPBlockCache (long maxBytes) {
+		this (maxBytes, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param maxBytes budget for the cached blocks
+	 * @param blockSize size of the blocks read from the server and cached
+	 */
+	public SFTPBlockCache (long maxBytes, int blockSize) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException ("maxBytes must not be negative: " + maxBytes);
+		}
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException ("blockSize must be greater than 0: " + blockSize);
+		}
+		this.maxBytes = maxBytes;
+		this.blockSize = blockSize;
+	}
+
+	public long getMaxBytes () {
+		return maxBytes;
+	}
+
+	public int getBlockSize () {
+		return blockSize;
+	}
+
+	/**
+	 * Read a range of a remote file, from the cache where possible
+	 *
+	 * @param channelSftp
+	 * @param filename as for the other SFTP methods: <code>\</code>,
+	 * <code>*</code> and <code>?</code> in the name are escaped with a
+	 * backslash
+	 * @param position offset in the file
+	 * @param dst
+	 * @param off offset in <code>dst</code>
+	 * @param len
+	 * @return number of bytes read, less than <code>len</code> only at the
+	 * end of the file, or -1 if <code>position</code> is at or past the end
+	 * @throws SSHHelperException
+	 */
+	public int read (ChannelSftpExtDM channelSftp, String filename, long position, byte[] dst, int off, int len) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (channelSftp, filename, position, off, len);
+
+		if (position < 0 || off < 0 || len < 0 || off + len > dst.length) {
+			throw new IndexOutOfBoundsException ();
+		}
+
+		String path = resolve (channelSftp, filename);
+		SftpATTRS attrs;
+		try {
+			attrs = channelSftp.stat (SFTPTreeTransfer.quoteRemotePath (path));
+		} catch (SftpException ex) {
+			// The name may lead to another file than when it was resolved
+			forget (channelSftp, filename);
+			path = resolve (channelSftp, filename);
+			try {
+				attrs = channelSftp.stat (SFTPTreeTransfer.quoteRemotePath (path));
+			} catch (SftpException ex2) {
+				throw new SSHHelperException (ex2);
+			}
+		}
+		String file = fileId (channelSftp, path);
+		long size = attrs.getSize ();
+		long mtime = attrs.getMTime ();
+		checkVersion (file, size, mtime);
+
+		if (position >= size) {
+			SSHHelper.getLoggerWrapper ().exiting (-1);
+			return -1;
+		}
+
+		int read = 0;
+		while (read < len && position + read < size) {
+			long blockOffset = ((position + read) / blockSize) * blockSize;
+			byte[] block = block (channelSftp, path, new BlockKey (file, size, mtime, blockOffset));
+
+			int from = (int) (position + read - blockOffset);
+			int n = Math.min (len - read, block.length - from);
+			if (n <= 0) {
+				// The file has become shorter than its stat said
+				break;
+			}
+			System.arraycopy (block, from, dst, off + read, n);
+			read += n;
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting (read);
+		return read;
+	}
+
+	/**
+	 * Drop the cached blocks of a file, and the canonical path remembered
+	 * for the name
+	 *
+	 * @param channelSftp
+	 * @param filename
+	 * @throws SSHHelperException
+	 */
+	public void invalidate (ChannelSftpExtDM channelSftp, String filename) throws SSHHelperException {
+		String file = fileId (channelSftp, resolve (channelSftp, filename));
+		forget (channelSftp, filename);
+		synchronized (this) {
+			versions.remove (file);
+			removeBlocks (file);
+		}
+	}
+
+	/**
+	 * Drop all the cached blocks
+	 */
+	public synchronized void invalidateAll () {
+		blocks.clear ();
+		versions.clear ();
+		canonicalPaths.clear ();
+		currentBytes = 0;
+	}
+
+	public synchronized long getHits () {
+		return hits;
+	}
+
+	public synchronized long getMisses () {
+		return misses;
+	}
+
+	/**
+	 * @return hits divided by block lookups, or 0 before the first lookup
+	 */
+	public synchronized double getHitRate () {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	/**
+	 * @return number of blocks evicted to stay within the budget
+	 */
+	public synchronized long getEvictions () {
+		return evictions;
+	}
+
+	/**
+	 * @return number of times the blocks of a file were dropped because it
+	 * had changed
+	 */
+	public synchronized long getInvalidations () {
+		return invalidations;
+	}
+
+	public synchronized long getCurrentBytes () {
+		return currentBytes;
+	}
+
+	public synchronized int getBlockCount () {
+		return blocks.size ();
+	}
+
+	/**
+	 * Reset the hit, miss, eviction and invalidation counters
+	 */
+	public synchronized void resetStatistics () {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+		invalidations = 0;
+	}
+
+	/**
+	 * @return the canonical absolute path of the file, unquoted, as the
+	 * server has resolved it from the channel's current directory
+	 */
+	private String resolve (ChannelSftpExtDM channelSftp, String filename) throws SSHHelperException {
+		String name = absoluteName (channelSftp, filename);
+		String key = fileId (channelSftp, name);
+		synchronized (this) {
+			String path = canonicalPaths.get (key);
+			if (path != null) {
+				return path;
+			}
+		}
+
+		String path;
+		try {
+			// REALPATH takes the name literally
+			path = channelSftp.realpath (name);
+		} catch (SftpException ex) {
+			throw new SSHHelperException (ex);
+		}
+		synchronized (this) {
+			canonicalPaths.put (key, path);
+		}
+		return path;
+	}
+
+	private void forget (ChannelSftpExtDM channelSftp, String filename) throws SSHHelperException {
+		String key = fileId (channelSftp, absoluteName (channelSftp, filename));
+		synchronized (this) {
+			canonicalPaths.remove (key);
+		}
+	}
+
+	/**
+	 * @return the name unquoted, and made absolute with the channel's
+	 * current directory
+	 */
+	private static String absoluteName (ChannelSftpExtDM channelSftp, String filename) throws SSHHelperException {
+		String name = SFTPTreeTransfer.unquoteRemotePath (filename);
+		if (name.startsWith ("/")) {
+			return name;
+		}
+		String cwd;
+		try {
+			cwd = channelSftp.pwd ();
+		} catch (SftpException ex) {
+			throw new SSHHelperException (ex);
+		}
+		return cwd.endsWith ("/") ? cwd + name : cwd + "/" + name;
+	}
+
+	/**
+	 * @param path an absolute unquoted path
+	 */
+	private static String fileId (ChannelSftpExtDM channelSftp, String path) throws SSHHelperException {
+		try {
+			Session session = channelSftp.getSession ();
+			return session.getUserName () + "@" + session.getHost () + ":" + session.getPort () + ":" + path;
+		} catch (JSchException ex) {
+			throw new SSHHelperException (ex);
+		}
+	}
+
+	private synchronized void checkVersion (String file, long size, long mtime) {
+		long[] version = versions.get (file);
+		if (version == null) {
+			versions.put (file, new long[]{size, mtime});
+		} else if (version[0] != size || version[1] != mtime) {
+			version[0] = size;
+			version[1] = mtime;
+			removeBlocks (file);
+			invalidations++;
+		}
+	}
+
+	private void removeBlocks (String file) {
+		Iterator<Map.Entry<BlockKey, byte[]>> it = blocks.entrySet ().iterator ();
+		while (it.hasNext ()) {
+			Map.Entry<BlockKey, byte[]> entry = it.next ();
+			if (entry.getKey ().file.equals (file)) {
+				currentBytes -= entry.getValue ().length;
+				it.remove ();
+			}
+		}
+	}
+
+	/**
+	 * Get a block from the cache, or read it from the server and cache it.
+	 * The server is read outside the lock, so other threads are not held up
+	 */
+	private byte[] block (ChannelSftpExtDM channelSftp, String path, BlockKey key) throws SSHHelperException {
+		synchronized (this) {
+			byte[] block = blocks.get (key);
+			if (block != null) {
+				hits++;
+				return block;
+			}
+			misses++;
+		}
+
+		byte[] block = new byte[(int) Math.min (blockSize, key.size - key.offset)];
+		int n;
+		try {
+			n = channelSftp.getRange (SFTPTreeTransfer.quoteRemotePath (path), ByteBuffer.wrap (block), key.offset, null);
+		} catch (SftpException ex) {
+			throw new SSHHelperException (ex);
+		}
+		if (n < block.length) {
+			block = Arrays.copyOf (block, n);
+		}
+
+		synchronized (this) {
+			long[] version = versions.get (key.file);
+			if (block.length > maxBytes || version == null || version[0] != key.size || version[1] != key.mtime) {
+				// Too big to cache, or the file has changed meanwhile
+				return block;
+			}
+			byte[] previous = blocks.put (key, block);
+			if (previous != null) {
+				currentBytes -= previous.length;
+			}
+			currentBytes += block.length;
+
+			Iterator<byte[]> it = blocks.values ().iterator ();
+			while (currentBytes > maxBytes && it.hasNext ()) {
+				currentBytes -= it.next ().length;
+				it.remove ();
+				evictions++;
+			}
+		}
+		return block;
+	}
+
+	private static final class BlockKey {
+
+		final String file;
+		final long size;
+		final long mtime;
+		final long offset;
+
+		BlockKey (String file, long size, long mtime, long offset) {
+			this.file = file;
+			this.size = size;
+			this.mtime = mtime;
+			this.offset = offset;
+		}
+
+		@Override
+		public boolean equals (Object o) {
+			if (!(o instanceof BlockKey)) {
+				return false;
+			}
+			BlockKey other = (BlockKey) o;
+			return offset == other.offset && size == other.size && mtime == other.mtime && file.equals (other.file);
+		}
+
+		@Override
+		public int hashCode () {
+			int result = file.hashCode ();
+			result = 31 * result + (int) (size ^ (size >>> 32));
+			result = 31 * result + (int) (mtime ^ (mtime >>> 32));
+			result = 31 * result + (int) (offset ^ (offset >>> 32));
+			return result;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelSftpExtDM;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Opens SFTP channels for the parallel transfers, either all on one session
+ * or each on a session borrowed from a pool. Closing a channel disconnects
+ * only the channel; a borrowed session goes back to the pool, or is
+ * invalidated if it has been lost.
+ *
+ * @author Dmitriy Merkushov
+ */
+class SFTPChannelSource {
+
+	private final Session session;
+	private final SSHSessionPool pool;
+	private final SSHHost host;
+	private final String filenameEncoding;
+
+	SFTPChannelSource (Session session, String filenameEncoding) {
+		if (session == null) {
+			throw new NullPointerException ("session");
+		}
+		this.session = session;
+		this.pool = null;
+		this.host = null;
+		this.filenameEncoding = filenameEncoding;
+	}
+
+	SFTPChannelSource (SSHSessionPool pool, SSHHost host, String filenameEncoding) {
+		if (pool == null) {
+			throw new NullPointerException ("pool");
+		}
+		if (host == null) {
+			throw new NullPointerException ("host");
+		}
+		this.session = null;
+		this.pool = pool;
+		this.host = host;
+		this.filenameEncoding = filenameEncoding;
+	}
+
+	/**
+	 * @return remote filename encoding, may be null
+	 */
+	String getFilenameEncoding () {
+		return filenameEncoding;
+	}
+
+	ChannelSftpExtDM open () throws SSHHelperException {
+		if (pool == null) {
+			return SSHHelper.openChannelSftpExtDM (session, filenameEncoding);
+		}
+
+		Session borrowed = pool.borrow (host.getHostname (), host.getPort (), host.getUsername (), host.getPassword (), host.getKnownHostsFilePath (), host.getIdentityFilePath ());
+		try {
+			return SSHHelper.openChannelSftpExtDM (borrowed, filenameEncoding);
+		} catch (SSHHelperException | RuntimeException ex) {
+			if (borrowed.isConnected ()) {
+				pool.release (borrowed);
+			} else {
+				pool.invalidate (borrowed);
+			}
+			throw ex;
+		}
+	}
+
+	void close (ChannelSftpExtDM channelSftp) {
+		if (channelSftp == null) {
+			return;
+		}
+
+		Session channelSession;
+		try {
+			channelSession = channelSftp.getSession ();
+		} catch (JSchException ex) {
+			channelSession = null;
+		}
+
+		channelSftp.disconnect ();
+
+		if (pool != null && channelSession != null) {
+			if (channelSession.isConnected ()) {
+				pool.release (channelSession);
+			} else {
+				pool.invalidate (channelSession);
+			}
+		}
+	}
+}
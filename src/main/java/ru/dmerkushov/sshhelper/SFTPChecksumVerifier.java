@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelSftpExtDM;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies transferred files by comparing checksums computed on the server
+ * with checksums of the local files, so the remote files do not have to be
+ * downloaded again.
+ *
+ * The server hashes the files with the SFTP check-file extension if it
+ * advertises one; otherwise <code>sha256sum</code> or <code>md5sum</code> is
+ * run over exec, with as many files per command as the command length
+ * allows, and its output is parsed line by line as it arrives.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SFTPChecksumVerifier {
+
+	public static final String SHA256 = "sha256";
+	public static final String MD5 = "md5";
+
+	private final SFTPChannelSource channels;
+	private volatile long checkFileCount = 0;
+	private volatile long execCount = 0;
+
+	/**
+	 * Open the channels on a session. The session is left open
+	 *
+	 * @param session
+	 * @param filenameEncoding remote filename encoding, may be null
+	 */
+	public SFTPChecksumVerifier (Session session, String filenameEncoding) {
+		this.channels = new SFTPChannelSource (session, filenameEncoding);
+	}
+
+	/**
+	 * Open the channels on sessions borrowed from a pool
+	 *
+	 * @param pool
+	 * @param host
+	 * @param filenameEncoding remote filename encoding, may be null
+	 */
+	public SFTPChecksumVerifier (SSHSessionPool pool, SSHHost host, String filenameEncoding) {
+		this.channels = new SFTPChannelSource (pool, host, filenameEncoding);
+	}
+
+	/**
+	 * @return number of files hashed with check-file by the last call
+	 */
+	public long getCheckFileCount () {
+		return checkFileCount;
+	}
+
+	/**
+	 * @return number of files hashed over exec by the last call
+	 */
+	public long getExecCount () {
+		return execCount;
+	}
+
+	/**
+	 * Compute checksums of remote files on the server
+	 *
+	 * @param remoteFilenames
+	 * @param algorithm {@link #SHA256} or {@link #MD5}
+	 * @return lowercase hex checksums by remote filename; a file that cannot
+	 * be read is missing from the map
+	 * @throws SSHHelperException
+	 */
+	public Map<String, String> remoteChecksums (List<String> remoteFilenames, String algorithm) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (remoteFilenames.size (), algorithm);
+
+		String tool = toolName (algorithm);
+		Map<String, String> result = new HashMap<> ();
+		List<String> remaining = new ArrayList<> ();
+		long checkFiles = 0;
+
+		ChannelSftpExtDM channelSftp = channels.open ();
+		try {
+			if (channelSftp.isCheckFileSupported ()) {
+				for (String remoteFilename : remoteFilenames) {
+					String[] checkFile;
+					try {
+						checkFile = channelSftp.checkFile (SFTPTreeTransfer.quoteRemotePath (remoteFilename), algorithm);
+					} catch (SftpException ex) {
+						if (ex.id == ChannelSftpExtDM.SSH_FX_NO_SUCH_FILE || ex.id == ChannelSftpExtDM.SSH_FX_PERMISSION_DENIED) {
+							continue;
+						}
+						checkFile = null;
+					}
+					if (checkFile != null && checkFile[0].equalsIgnoreCase (algorithm)) {
+						result.put (remoteFilename, checkFile[1]);
+						checkFiles++;
+					} else {
+						remaining.add (remoteFilename);
+					}
+				}
+			} else {
+				remaining.addAll (remoteFilenames);
+			}
+
+			if (!remaining.isEmpty ()) {
+				String charset = channels.getFilenameEncoding ();
+				if (charset == null || !Charset.isSupported (charset)) {
+					charset = "UTF-8";
+				}
+				Map<String, String> computed = RemoteChecksums.compute (channelSftp.getSession (), tool, remaining, charset);
+				for (String remoteFilename : remaining) {
+					String checksum = computed.get (remoteFilename);
+					if (checksum != null) {
+						result.put (remoteFilename, checksum);
+					}
+				}
+			}
+		} catch (JSchException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			channels.close (channelSftp);
+		}
+
+		checkFileCount = checkFiles;
+		execCount = remaining.size ();
+
+		SSHHelper.getLoggerWrapper ().exiting (result.size ());
+		return result;
+	}
+
+	/**
+	 * Verify that remote files are the same as local ones
+	 *
+	 * @param remoteToLocal local filename by remote filename
+	 * @param algorithm {@link #SHA256} or {@link #MD5}
+	 * @return remote filenames that differ from the local files or cannot be
+	 * hashed; empty if all the files are the same
+	 * @throws SSHHelperException
+	 */
+	public List<String> verify (Map<String, String> remoteToLocal, String algorithm) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (remoteToLocal.size (), algorithm);
+
+		String digestName = digestName (algorithm);
+		Map<String, String> remote = remoteChecksums (new ArrayList<> (remoteToLocal.keySet ()), algorithm);
+
+		List<String> mismatches = new ArrayList<> ();
+		for (Map.Entry<String, String> entry : remoteToLocal.entrySet ()) {
+			String remoteChecksum = remote.get (entry.getKey ());
+			if (remoteChecksum == null || !remoteChecksum.equals (RemoteChecksums.local (new File (entry.getValue ()), digestName))) {
+				mismatches.add (entry.getKey ());
+			}
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting (mismatches);
+		return mismatches;
+	}
+
+	/**
+	 * Verify that a remote file is the same as a local one
+	 *
+	 * @param localFilename
+	 * @param remoteFilename
+	 * @param algorithm {@link #SHA256} or {@link #MD5}
+	 * @return true if the checksums match
+	 * @throws SSHHelperException
+	 */
+	public boolean verify (String localFilename, String remoteFilename, String algorithm) throws SSHHelperException {
+		return verify (Collections.singletonMap (remoteFilename, localFilename), algorithm).isEmpty ();
+	}
+
+	private static String toolName (String algorithm) {
+		if (SHA256.equals (algorithm)) {
+			return "sha256sum";
+		} else if (MD5.equals (algorithm)) {
+			return "md5sum";
+		}
+		throw new IllegalArgumentException ("Unsupported checksum algorithm: " + algorithm);
+	}
+
+	private static String digestName (String algorithm) {
+		if (SHA256.equals (algorithm)) {
+			return "SHA-256";
+		} else if (MD5.equals (algorithm)) {
+			return "MD5";
+		}
+		throw new IllegalArgumentException ("Unsupported checksum algorithm: " + algorithm);
+	}
+}
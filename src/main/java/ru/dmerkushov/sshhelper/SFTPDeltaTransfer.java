@@ -0,0 +1,294 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelSftpExtDM;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Uploads a large file that differs only a little from its remote copy by
+ * writing only the blocks that have changed.
+ *
+ * The remote file is cut into blocks of {@link #setBlockSize(int)} bytes
+ * and every block is hashed with SHA-256 on the server, in one exec command
+ * (<code>split --filter=sha256sum</code>, or a <code>dd | sha256sum</code>
+ * loop where <code>split</code> has no <code>--filter</code>). The local
+ * blocks are hashed the same way, and the blocks that differ are written in
+ * place at their offsets over SFTP; the remote file is then cut or extended
+ * to the local size.
+ *
+ * Blocks are compared at the same offsets only: SFTP cannot move data
+ * inside a remote file, so data inserted or removed in the middle of the
+ * file makes every following block differ.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SFTPDeltaTransfer {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	private final SFTPChannelSource channels;
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+
+	private volatile long blocksTotal = 0;
+	private volatile long blocksChanged = 0;
+	private volatile long bytesWritten = 0;
+	private volatile long bytesAvoided = 0;
+
+	/**
+	 * Open the channels on a session. The session is left open
+	 *
+	 * @param session
+	 * @param filenameEncoding remote filename encoding, may be null
+	 */
+	public SFTPDeltaTransfer (Session session, String filenameEncoding) {
+		this.channels = new SFTPChannelSource (session, filenameEncoding);
+	}
+
+	/**
+	 * Open the channels on sessions borrowed from a pool
+	 *
+	 * @param pool
+	 * @param host
+	 * @param filenameEncoding remote filename encoding, may be null
+	 */
+	public SFTPDeltaTransfer (SSHSessionPool pool, SSHHost host, String filenameEncoding) {
+		this.channels = new SFTPChannelSource (pool, host, filenameEncoding);
+	}
+
+	public int getBlockSize () {
+		return blockSize;
+	}
+
+	/**
+	 * @param blockSize size of the compared blocks; smaller blocks send
+	 * less data but cost more hashing and checksum traffic
+	 */
+	public void setBlockSize (int blockSize) {
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException ("blockSize must be greater than 0: " + blockSize);
+		}
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return number of blocks of the local file in the last upload
+	 */
+	public long getBlocksTotal () {
+		return blocksTotal;
+	}
+
+	/**
+	 * @return number of blocks written in the last upload
+	 */
+	public long getBlocksChanged () {
+		return blocksChanged;
+	}
+
+	/**
+	 * @return number of bytes written in the last upload
+	 */
+	public long getBytesWritten () {
+		return bytesWritten;
+	}
+
+	/**
+	 * @return number of bytes not sent in the last upload because their
+	 * blocks were unchanged
+	 */
+	public long getBytesAvoided () {
+		return bytesAvoided;
+	}
+
+	/**
+	 * Upload a local file over its remote copy, writing only the changed
+	 * blocks. If the remote file does not exist, it is uploaded whole. The
+	 * remote file gets the local modification time
+	 *
+	 * @param localFilename
+	 * @param remoteFilename
+	 * @return number of bytes written
+	 * @throws SSHHelperException
+	 */
+	public long upload (String localFilename, String remoteFilename) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (localFilename, remoteFilename);
+
+		blocksTotal = 0;
+		blocksChanged = 0;
+		bytesWritten = 0;
+		bytesAvoided = 0;
+
+		File localFile = new File (localFilename);
+		String quoted = SFTPTreeTransfer.quoteRemotePath (remoteFilename);
+
+		ChannelSftpExtDM channelSftp = channels.open ();
+		try (RandomAccessFile raf = new RandomAccessFile (localFile, "r")) {
+			FileChannel fileChannel = raf.getChannel ();
+			long size = fileChannel.size ();
+
+			SftpATTRS attrs;
+			try {
+				attrs = channelSftp.stat (quoted);
+			} catch (SftpException ex) {
+				if (ex.id != ChannelSftpExtDM.SSH_FX_NO_SUCH_FILE) {
+					throw ex;
+				}
+				attrs = null;
+			}
+			if (attrs != null && !attrs.isReg ()) {
+				throw new SSHHelperException ("Remote " + remoteFilename + " is not a regular file");
+			}
+
+			List<String> remoteBlocks = new ArrayList<> ();
+			long remoteSize = 0;
+			if (attrs != null && attrs.getSize () > 0) {
+				remoteSize = attrs.getSize ();
+				remoteBlocks = remoteBlockChecksums (channelSftp.getSession (), remoteFilename, remoteSize);
+			}
+
+			List<long[]> ranges = new ArrayList<> ();
+			MessageDigest digest = MessageDigest.getInstance ("SHA-256");
+			ByteBuffer block = ByteBuffer.allocate ((int) Math.min (blockSize, Math.max (size, 1)));
+			long blocks = 0;
+			long changed = 0;
+
+			for (long offset = 0; offset < size; offset += blockSize) {
+				int length = (int) Math.min (blockSize, size - offset);
+				int index = (int) (offset / blockSize);
+				blocks++;
+
+				boolean same = false;
+				if (index < remoteBlocks.size () && offset + length <= remoteSize) {
+					block.clear ();
+					block.limit (length);
+					while (block.hasRemaining ()) {
+						if (fileChannel.read (block, offset + block.position ()) < 0) {
+							throw new SSHHelperException ("Local file " + localFilename + " ended at " + (offset + block.position ()));
+						}
+					}
+					block.flip ();
+					digest.reset ();
+					digest.update (block);
+					same = RemoteChecksums.toHex (digest.digest ()).equals (remoteBlocks.get (index));
+				}
+
+				if (!same) {
+					changed++;
+					long[] last = ranges.isEmpty () ? null : ranges.get (ranges.size () - 1);
+					if (last != null && last[0] + last[1] == offset) {
+						last[1] += length;
+					} else {
+						ranges.add (new long[]{offset, length});
+					}
+				}
+			}
+
+			byte[] handle = channelSftp.openForWrite (quoted, attrs == null);
+			long written;
+			try {
+				written = channelSftp.putRanges (handle, fileChannel, ranges, null);
+			} finally {
+				channelSftp.closeHandle (handle);
+			}
+
+			if (remoteSize != size) {
+				channelSftp.truncate (quoted, size);
+			}
+			channelSftp.setMtime (quoted, (int) (localFile.lastModified () / 1000L));
+
+			long remoteSizeAfter = channelSftp.stat (quoted).getSize ();
+			if (remoteSizeAfter != size) {
+				throw new SSHHelperException ("Size mismatch after uploading " + remoteFilename + ": expected " + size + ", remote file " + remoteSizeAfter);
+			}
+
+			blocksTotal = blocks;
+			blocksChanged = changed;
+			bytesWritten = written;
+			bytesAvoided = size - written;
+
+			SSHHelper.getLoggerWrapper ().exiting (written);
+			return written;
+		} catch (SftpException | JSchException | IOException | NoSuchAlgorithmException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			channels.close (channelSftp);
+		}
+	}
+
+	/**
+	 * Hash the blocks of a remote file on the server
+	 *
+	 * @param session
+	 * @param remoteFilename
+	 * @param remoteSize
+	 * @return lowercase hex SHA-256 of every block, in order
+	 * @throws SSHHelperException if the server has not returned a checksum
+	 * for every block
+	 */
+	List<String> remoteBlockChecksums (Session session, String remoteFilename, long remoteSize) throws SSHHelperException {
+		long count = (remoteSize + blockSize - 1) / blockSize;
+		String file = RemoteChecksums.shellQuote (remoteFilename);
+
+		String command = "if split --help 2>/dev/null | grep -q -e --filter; then"
+				+ " split -a 8 -b " + blockSize + " --filter=sha256sum -- " + file + ";"
+				+ " else"
+				+ " i=0; while [ $i -lt " + count + " ]; do"
+				+ " dd if=" + file + " bs=" + blockSize + " skip=$i count=1 2>/dev/null | sha256sum;"
+				+ " i=$((i+1)); done;"
+				+ " fi";
+
+		final List<String> checksums = new ArrayList<> ();
+		SSHLineListener stdout = new SSHLineListener () {
+			@Override
+			public void line (String line) {
+				int space = line.indexOf (' ');
+				if (space > 0) {
+					checksums.add (line.substring (0, space).toLowerCase ());
+				}
+			}
+		};
+		SSHLineListener stderr = new SSHLineListener () {
+			@Override
+			public void line (String line) {
+				SSHHelper.getLoggerWrapper ().warning (line);
+			}
+		};
+
+		String charset = channels.getFilenameEncoding ();
+		if (charset == null || !Charset.isSupported (charset)) {
+			charset = "UTF-8";
+		}
+		SSHHelper.streamCommand (session, command, stdout, stderr, charset);
+
+		if (checksums.size () != count) {
+			throw new SSHHelperException ("Expected " + count + " block checksums of " + remoteFilename + ", got " + checksums.size ());
+		}
+		return checksums;
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelSftpExtDM;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Follows a growing remote file like <code>tail -f</code>, passing only the
+ * bytes appended since the last poll to a sink.
+ *
+ * The file is kept open; its size is polled with FSTAT, starting every
+ * {@link #setPollInterval(long, long)} <code>minMillis</code> and doubling up
+ * to <code>maxMillis</code> while nothing is appended. New bytes are read
+ * from the open handle at the offset read up to.
+ *
+ * If the file becomes shorter than that offset, it has been truncated and
+ * is read again from the start. SFTP v3 does not report inode numbers, so
+ * rotation is detected by comparing the file now at the path with the open
+ * one: when the old file is idle and the path has a smaller size, or a
+ * different size or modification time on two polls in a row, the old file
+ * is read to its end and the new one is opened and read from the start.
+ *
+ * The follower uses its ChannelSftpExtDM alone until {@link #follow(java.io.OutputStream)}
+ * returns.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SFTPFileFollower {
+
+	public static final long DEFAULT_MIN_POLL_MILLIS = 200L;
+	public static final long DEFAULT_MAX_POLL_MILLIS = 5000L;
+	public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+	private final ChannelSftpExtDM channelSftp;
+	private final String filename;
+	private long minPollMillis = DEFAULT_MIN_POLL_MILLIS;
+	private long maxPollMillis = DEFAULT_MAX_POLL_MILLIS;
+	private boolean startAtEnd = true;
+	private SFTPFollowListener listener = null;
+
+	private volatile boolean stopped = false;
+	private volatile long offset = 0;
+	private volatile long bytesRead = 0;
+	private volatile int truncationCount = 0;
+	private volatile int rotationCount = 0;
+
+	/**
+	 * @param channelSftp
+	 * @param filename
+	 */
+	public SFTPFileFollower (ChannelSftpExtDM channelSftp, String filename) {
+		if (channelSftp == null) {
+			throw new NullPointerException ("channelSftp");
+		}
+		if (filename == null) {
+			throw new NullPointerException ("filename");
+		}
+		this.channelSftp = channelSftp;
+		this.filename = filename;
+	}
+
+	/**
+	 * @param minMillis poll interval while the file is growing
+	 * @param maxMillis longest poll interval while the file is idle
+	 */
+	public void setPollInterval (long minMillis, long maxMillis) {
+		if (minMillis <= 0 || maxMillis < minMillis) {
+			throw new IllegalArgumentException ("Invalid poll interval: " + minMillis + ", " + maxMillis);
+		}
+		this.minPollMillis = minMillis;
+		this.maxPollMillis = maxMillis;
+	}
+
+	/**
+	 * @param startAtEnd true to pass on only what is appended after
+	 * following starts, false to pass on the whole file first
+	 */
+	public void setStartAtEnd (boolean startAtEnd) {
+		this.startAtEnd = startAtEnd;
+	}
+
+	/**
+	 * @param listener is told about truncation and rotation, may be null
+	 */
+	public void setListener (SFTPFollowListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return offset in the current file read up to
+	 */
+	public long getOffset () {
+		return offset;
+	}
+
+	/**
+	 * @return number of bytes passed to the sink
+	 */
+	public long getBytesRead () {
+		return bytesRead;
+	}
+
+	public int getTruncationCount () {
+		return truncationCount;
+	}
+
+	public int getRotationCount () {
+		return rotationCount;
+	}
+
+	/**
+	 * Make {@link #follow(java.io.OutputStream)} return after its current poll
+	 */
+	public void stop () {
+		stopped = true;
+	}
+
+	/**
+	 * Follow the file until {@link #stop()} is called or the thread is
+	 * interrupted. The sink is flushed after every poll that has read
+	 * something, and is not closed. To receive lines, pass an
+	 * {@link SSHLineOutputStream}
+	 *
+	 * @param sink
+	 * @return number of bytes passed to the sink
+	 * @throws SSHHelperException
+	 */
+	public long follow (OutputStream sink) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (filename, sink);
+
+		stopped = false;
+		bytesRead = 0;
+		ByteBuffer chunk = ByteBuffer.allocate (DEFAULT_CHUNK_SIZE);
+
+		byte[] handle = null;
+		try {
+			handle = channelSftp.openForRead (filename);
+			offset = startAtEnd ? channelSftp.fstat (handle).getSize () : 0;
+
+			long interval = minPollMillis;
+			int mismatchedPolls = 0;
+			while (!stopped && !Thread.currentThread ().isInterrupted ()) {
+				SftpATTRS attrs = channelSftp.fstat (handle);
+				long size = attrs.getSize ();
+
+				if (size < offset) {
+					SSHHelper.getLoggerWrapper ().info ("File '" + filename + "' truncated from " + offset + " to " + size + " bytes");
+					truncationCount++;
+					if (listener != null) {
+						listener.truncated (filename, offset);
+					}
+					offset = 0;
+				}
+
+				if (size > offset) {
+					readAppended (handle, size, chunk, sink);
+					interval = minPollMillis;
+					mismatchedPolls = 0;
+				} else {
+					SftpATTRS pathAttrs = statPath ();
+					if (pathAttrs != null && (pathAttrs.getSize () != size || pathAttrs.getMTime () != attrs.getMTime ())) {
+						mismatchedPolls++;
+					} else {
+						mismatchedPolls = 0;
+					}
+
+					if (pathAttrs != null && (pathAttrs.getSize () < size || mismatchedPolls >= 2)) {
+						// Whatever was appended to the old file since the last poll
+						readAppended (handle, channelSftp.fstat (handle).getSize (), chunk, sink);
+						SSHHelper.getLoggerWrapper ().info ("File '" + filename + "' rotated at " + offset + " bytes");
+						channelSftp.closeHandle (handle);
+						handle = null;	// not closed again if the new file cannot be opened
+						handle = channelSftp.openForRead (filename);
+						rotationCount++;
+						if (listener != null) {
+							listener.rotated (filename, offset);
+						}
+						offset = 0;
+						interval = minPollMillis;
+						mismatchedPolls = 0;
+						continue;
+					}
+
+					interval = Math.min (interval * 2, maxPollMillis);
+				}
+
+				Thread.sleep (interval);
+			}
+		} catch (SftpException ex) {
+			throw new SSHHelperException (ex);
+		} catch (IOException ioE) {
+			throw new SSHHelperException ("Received an IOException when writing the contents of file '" + filename + "'. It says,\n" + ioE.getMessage ());
+		} catch (InterruptedException ex) {
+			Thread.currentThread ().interrupt ();
+		} finally {
+			if (handle != null) {
+				try {
+					channelSftp.closeHandle (handle);
+				} catch (SftpException ex) {
+					SSHHelper.getLoggerWrapper ().warning ("Cannot close file '" + filename + "': " + ex);
+				}
+			}
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting (bytesRead);
+		return bytesRead;
+	}
+
+	private void readAppended (byte[] handle, long size, ByteBuffer chunk, OutputStream sink) throws SftpException, IOException {
+		while (offset < size) {
+			chunk.clear ();
+			chunk.limit ((int) Math.min (chunk.capacity (), size - offset));
+			int n = channelSftp.getRange (handle, chunk, offset);
+			if (n <= 0) {
+				break;
+			}
+			sink.write (chunk.array (), 0, n);
+			offset += n;
+			bytesRead += n;
+		}
+		sink.flush ();
+	}
+
+	/**
+	 * @return the attributes of the file now at the path, or null if there is
+	 * none, as between renaming the old file and creating the new one
+	 */
+	private SftpATTRS statPath () throws SftpException {
+		try {
+			return channelSftp.stat (filename);
+		} catch (SftpException ex) {
+			if (ex.id == ChannelSftpExtDM.SSH_FX_NO_SUCH_FILE) {
+				return null;
+			}
+			throw ex;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+/**
+ * Is told when a followed remote file starts over
+ *
+ * @author Dmitriy Merkushov
+ * @see SFTPFileFollower
+ */
+public interface SFTPFollowListener {
+
+	/**
+	 * Called when the file has become shorter than the offset read up to,
+	 * before it is read again from the start
+	 *
+	 * @param filename
+	 * @param offset the offset read up to
+	 */
+	public void truncated (String filename, long offset);
+
+	/**
+	 * Called when the file has been replaced by a new one, after the old file
+	 * has been read to its end and before the new one is read from the start
+	 *
+	 * @param filename
+	 * @param offset the size of the old file
+	 */
+	public void rotated (String filename, long offset);
+}
@@ -0,0 +1,552 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelSftpExtDM;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads or uploads one large file as several byte ranges at once, each
+ * range on its own SFTP channel. A single channel is bound by its window and its request
+ * queue; several channels fill a long fat link that one cannot.
+ *
+ * The channels are opened either all on one session, or each on a session
+ * borrowed from an {@link SSHSessionPool}. A failed segment is retried from
+ * the last byte it has written, on a fresh channel, up to
+ * {@link #setMaxRetries(int)} times.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SFTPParallelTransfer {
+
+	public static final int DEFAULT_SEGMENTS = 4;
+	public static final long DEFAULT_MIN_SEGMENT_SIZE = 8L * 1024L * 1024L;
+	public static final int DEFAULT_MAX_RETRIES = 3;
+
+	/**
+	 * Size of the buffer each download segment reads into
+	 */
+	static final int SEGMENT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * How long the other segments of a failed transfer may take to stop
+	 * before they are interrupted
+	 */
+	static final long CANCEL_GRACE_MILLIS = 10000L;
+
+	private final SFTPChannelSource channels;
+	private int segments = DEFAULT_SEGMENTS;
+	private long minSegmentSize = DEFAULT_MIN_SEGMENT_SIZE;
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+
+	private final AtomicLong retries = new AtomicLong ();
+	private final AtomicLong bytesTransferred = new AtomicLong ();
+
+	/**
+	 * Open all the channels on one session. The session is left open
+	 *
+	 * @param session
+	 * @param filenameEncoding remote filename encoding, may be null
+	 */
+	public SFTPParallelTransfer (Session session, String filenameEncoding) {
+		this.channels = new SFTPChannelSource (session, filenameEncoding);
+	}
+
+	/**
+	 * Open each channel on a session borrowed from a pool
+	 *
+	 * @param pool
+	 * @param host
+	 * @param filenameEncoding remote filename encoding, may be null
+	 */
+	public SFTPParallelTransfer (SSHSessionPool pool, SSHHost host, String filenameEncoding) {
+		this.channels = new SFTPChannelSource (pool, host, filenameEncoding);
+	}
+
+	public int getSegments () {
+		return segments;
+	}
+
+	/**
+	 * @param segments maximum number of ranges transferred at once
+	 */
+	public void setSegments (int segments) {
+		if (segments <= 0) {
+			throw new IllegalArgumentException ("segments must be greater than 0: " + segments);
+		}
+		this.segments = segments;
+	}
+
+	public long getMinSegmentSize () {
+		return minSegmentSize;
+	}
+
+	/**
+	 * @param minSegmentSize smaller files are split into fewer segments
+	 */
+	public void setMinSegmentSize (long minSegmentSize) {
+		if (minSegmentSize <= 0) {
+			throw new IllegalArgumentException ("minSegmentSize must be greater than 0: " + minSegmentSize);
+		}
+		this.minSegmentSize = minSegmentSize;
+	}
+
+	public int getMaxRetries () {
+		return maxRetries;
+	}
+
+	/**
+	 * @param maxRetries how many times a failed segment is retried
+	 */
+	public void setMaxRetries (int maxRetries) {
+		this.maxRetries = maxRetries;
+	}
+
+	/**
+	 * @return number of segment retries since this object was created
+	 */
+	public long getRetryCount () {
+		return retries.get ();
+	}
+
+	/**
+	 * @return number of bytes written by all the segments since this object
+	 * was created
+	 */
+	public long getBytesTransferred () {
+		return bytesTransferred.get ();
+	}
+
+	/**
+	 * Download a remote file into a local file. The local file is
+	 * preallocated to the remote size and every segment writes its range
+	 * in place. If the download fails, the local file is deleted
+	 *
+	 * @param remoteFilename
+	 * @param localFilename
+	 * @return size of the file
+	 * @throws SSHHelperException if a segment fails after all the retries, or
+	 * the downloaded size differs from the remote size
+	 */
+	public long download (final String remoteFilename, String localFilename) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (remoteFilename, localFilename);
+
+		long size;
+		ChannelSftpExtDM channelSftp = channels.open ();
+		try {
+			SftpATTRS attrs = channelSftp.stat (remoteFilename);
+			if (attrs.isDir ()) {
+				throw new SSHHelperException ("Remote file " + remoteFilename + " is a directory");
+			}
+			size = attrs.getSize ();
+		} catch (SftpException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			channels.close (channelSftp);
+		}
+
+		boolean complete = false;
+		try (RandomAccessFile raf = new RandomAccessFile (localFilename, "rw")) {
+			raf.setLength (size);
+			final FileChannel fileChannel = raf.getChannel ();
+			final AtomicBoolean cancelled = new AtomicBoolean ();
+
+			List<Callable<Long>> tasks = new ArrayList<> ();
+			for (final long[] segment : split (size)) {
+				tasks.add (new Callable<Long> () {
+					@Override
+					public Long call () throws Exception {
+						return downloadSegment (remoteFilename, fileChannel, segment[0], segment[1], cancelled);
+					}
+				});
+			}
+
+			long total = runSegments (tasks, cancelled);
+
+			if (total != size || fileChannel.size () != size) {
+				throw new SSHHelperException ("Size mismatch after downloading " + remoteFilename + ": expected " + size + ", got " + total + " (local file " + fileChannel.size () + ")");
+			}
+			complete = true;
+		} catch (IOException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			// A preallocated file would look complete by its size
+			File localFile = new File (localFilename);
+			if (!complete && localFile.exists () && !localFile.delete ()) {
+				SSHHelper.getLoggerWrapper ().warning ("Cannot delete " + localFilename + " after a failed download");
+			}
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting (size);
+		return size;
+	}
+
+	/**
+	 * Read one segment through a buffer of its own and write it to the local
+	 * file. A failed segment is retried from the last byte written
+	 */
+	private long downloadSegment (String remoteFilename, FileChannel fileChannel, long offset, long length, AtomicBoolean cancelled) throws SSHHelperException {
+		ByteBuffer buffer = ByteBuffer.allocate ((int) Math.min (length, SEGMENT_BUFFER_SIZE));
+		long done = 0;
+		boolean ended = false;
+
+		int attempt = 0;
+		while (done < length && !ended) {
+			ChannelSftpExtDM channelSftp = null;
+			byte[] handle = null;
+			try {
+				channelSftp = channels.open ();
+				handle = channelSftp.openForRead (remoteFilename);
+				while (done < length) {
+					if (cancelled.get ()) {
+						throw new SSHHelperException ("Segment at " + offset + " of " + remoteFilename + " cancelled");
+					}
+					buffer.clear ();
+					buffer.limit ((int) Math.min (buffer.capacity (), length - done));
+					int requested = buffer.remaining ();
+					int n = channelSftp.getRange (handle, buffer, offset + done);
+
+					buffer.limit (n);
+					while (buffer.hasRemaining ()) {
+						fileChannel.write (buffer, offset + done + buffer.position ());
+					}
+					done += n;
+					bytesTransferred.addAndGet (n);
+
+					if (n < requested) {
+						ended = true;
+						break;
+					}
+				}
+			} catch (IOException ex) {
+				throw new SSHHelperException ("Cannot write " + remoteFilename + " at " + (offset + done) + " to the local file", ex);
+			} catch (SftpException | SSHHelperException ex) {
+				if (cancelled.get () || !isRetriable (ex) || attempt >= maxRetries) {
+					throw (ex instanceof SSHHelperException) ? (SSHHelperException) ex : new SSHHelperException (ex);
+				}
+				attempt++;
+				retries.incrementAndGet ();
+				SSHHelper.getLoggerWrapper ().warning ("Retrying segment at " + offset + " of " + remoteFilename + " from " + (offset + done) + " (attempt " + attempt + "): " + ex);
+			} finally {
+				if (handle != null) {
+					try {
+						channelSftp.closeHandle (handle);
+					} catch (SftpException ex) {
+					}
+				}
+				channels.close (channelSftp);
+			}
+		}
+
+		if (ended) {
+			throw new SSHHelperException ("Remote file " + remoteFilename + " ended at " + (offset + done) + " while downloading");
+		}
+		return length;
+	}
+
+	/**
+	 * Upload a local file into a remote file. The remote file is created or
+	 * truncated first; then every segment opens it on its own channel and
+	 * writes its range. All the handles are closed only after every segment
+	 * has been acknowledged
+	 *
+	 * @param localFilename
+	 * @param remoteFilename
+	 * @return size of the file
+	 * @throws SSHHelperException if a segment fails after all the retries, or
+	 * the remote size differs from the local size afterwards
+	 */
+	public long upload (String localFilename, final String remoteFilename) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (localFilename, remoteFilename);
+
+		final OpenHandles openHandles = new OpenHandles ();
+		final AtomicBoolean cancelled = new AtomicBoolean ();
+		long size;
+
+		try (RandomAccessFile raf = new RandomAccessFile (localFilename, "r")) {
+			final FileChannel fileChannel = raf.getChannel ();
+			size = fileChannel.size ();
+
+			ChannelSftpExtDM channelSftp = channels.open ();
+			try {
+				channelSftp.closeHandle (channelSftp.openForWrite (remoteFilename, true));
+			} finally {
+				channels.close (channelSftp);
+			}
+
+			List<Callable<Long>> tasks = new ArrayList<> ();
+			for (final long[] segment : split (size)) {
+				tasks.add (new Callable<Long> () {
+					@Override
+					public Long call () throws Exception {
+						return uploadSegment (fileChannel, remoteFilename, segment[0], segment[1], openHandles, cancelled);
+					}
+				});
+			}
+
+			long total = runSegments (tasks, cancelled);
+
+			SftpException closeFailure = openHandles.closeAll ();
+			if (closeFailure != null) {
+				throw new SSHHelperException ("Cannot close " + remoteFilename + " after uploading", closeFailure);
+			}
+
+			long remoteSize;
+			channelSftp = channels.open ();
+			try {
+				remoteSize = channelSftp.stat (remoteFilename).getSize ();
+			} finally {
+				channels.close (channelSftp);
+			}
+			if (total != size || remoteSize != size) {
+				throw new SSHHelperException ("Size mismatch after uploading " + remoteFilename + ": expected " + size + ", sent " + total + " (remote file " + remoteSize + ")");
+			}
+		} catch (IOException | SftpException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			openHandles.closeAll ();
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting (size);
+		return size;
+	}
+
+	/**
+	 * Write one segment and leave its handle open in
+	 * <code>openHandles</code>. The writes are positional, so a failed
+	 * segment is simply sent again from its start on a fresh channel
+	 */
+	private long uploadSegment (FileChannel fileChannel, String remoteFilename, long offset, long length, OpenHandles openHandles, final AtomicBoolean cancelled) throws SSHHelperException {
+		SftpProgressMonitor monitor = new SftpProgressMonitor () {
+			@Override
+			public void init (int op, String src, String dest, long max) {
+			}
+
+			@Override
+			public boolean count (long count) {
+				bytesTransferred.addAndGet (count);
+				return !cancelled.get ();
+			}
+
+			@Override
+			public void end () {
+			}
+		};
+
+		int attempt = 0;
+		while (true) {
+			ChannelSftpExtDM channelSftp = null;
+			try {
+				channelSftp = channels.open ();
+				byte[] handle = channelSftp.openForWrite (remoteFilename, false);
+				long written = channelSftp.putRange (handle, fileChannel, offset, length, monitor);
+				if (written < length || !openHandles.add (channelSftp, handle)) {
+					// Cancelled, or the handles of the failed upload are being
+					// closed already
+					try {
+						channelSftp.closeHandle (handle);
+					} catch (SftpException ex) {
+					}
+					throw new SSHHelperException ("Segment at " + offset + " of " + remoteFilename + " cancelled");
+				}
+				channelSftp = null;
+				return written;
+			} catch (SftpException | SSHHelperException ex) {
+				if (cancelled.get () || !isRetriable (ex) || attempt >= maxRetries) {
+					throw (ex instanceof SSHHelperException) ? (SSHHelperException) ex : new SSHHelperException (ex);
+				}
+				attempt++;
+				retries.incrementAndGet ();
+				SSHHelper.getLoggerWrapper ().warning ("Retrying segment at " + offset + " of " + remoteFilename + " (attempt " + attempt + "): " + ex);
+			} finally {
+				channels.close (channelSftp);
+			}
+		}
+	}
+
+	/**
+	 * The handles left open by the upload segments. Once they are being
+	 * closed, no handle can be added any more
+	 */
+	private class OpenHandles {
+
+		private final List<ChannelSftpExtDM> channelSftps = new ArrayList<> ();
+		private final List<byte[]> handles = new ArrayList<> ();
+		private boolean closing = false;
+
+		/**
+		 * @return false if the handles are being closed: the caller has to
+		 * close its handle itself
+		 */
+		synchronized boolean add (ChannelSftpExtDM channelSftp, byte[] handle) {
+			if (closing) {
+				return false;
+			}
+			channelSftps.add (channelSftp);
+			handles.add (handle);
+			return true;
+		}
+
+		/**
+		 * Close the handles and their channels
+		 *
+		 * @return the first failure to close a handle, or null
+		 */
+		synchronized SftpException closeAll () {
+			closing = true;
+			SftpException failure = null;
+			for (int i = 0; i < handles.size (); i++) {
+				try {
+					channelSftps.get (i).closeHandle (handles.get (i));
+				} catch (SftpException ex) {
+					if (failure == null) {
+						failure = ex;
+					}
+				} finally {
+					channels.close (channelSftps.get (i));
+				}
+			}
+			channelSftps.clear ();
+			handles.clear ();
+			return failure;
+		}
+	}
+
+	/**
+	 * Split a file into at most {@link #getSegments()} ranges of at least
+	 * {@link #getMinSegmentSize()} bytes each
+	 *
+	 * @param size
+	 * @return a list of {offset, length} pairs
+	 */
+	List<long[]> split (long size) {
+		long count = (size + minSegmentSize - 1) / minSegmentSize;
+		if (count > segments) {
+			count = segments;
+		}
+		if (count < 1) {
+			count = 1;
+		}
+		long segmentSize = (size + count - 1) / count;
+
+		List<long[]> result = new ArrayList<> ();
+		long offset = 0;
+		do {
+			long length = Math.min (segmentSize, size - offset);
+			result.add (new long[]{offset, length});
+			offset += length;
+		} while (offset < size);
+		return result;
+	}
+
+	/**
+	 * Run the segment tasks, one thread each, and sum their results. When a
+	 * segment fails, <code>cancelled</code> is set for the others to stop at
+	 * their next chunk; they are interrupted only if they have not stopped
+	 * after {@link #CANCEL_GRACE_MILLIS}. No task is running any more when
+	 * this method returns
+	 *
+	 * @param tasks
+	 * @param cancelled
+	 * @return
+	 * @throws SSHHelperException the failure of the segment that has failed
+	 * first
+	 */
+	long runSegments (List<Callable<Long>> tasks, AtomicBoolean cancelled) throws SSHHelperException {
+		ExecutorService executor = Executors.newFixedThreadPool (tasks.size ());
+		CompletionService<Long> completionService = new ExecutorCompletionService<> (executor);
+		boolean succeeded = false;
+		try {
+			for (Callable<Long> task : tasks) {
+				completionService.submit (task);
+			}
+
+			long total = 0;
+			for (int i = 0; i < tasks.size (); i++) {
+				total += completionService.take ().get ();
+			}
+			succeeded = true;
+			return total;
+		} catch (InterruptedException ex) {
+			Thread.currentThread ().interrupt ();
+			throw new SSHHelperException (ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause ();
+			if (cause instanceof SSHHelperException) {
+				throw (SSHHelperException) cause;
+			}
+			throw new SSHHelperException (cause);
+		} finally {
+			if (!succeeded) {
+				cancelled.set (true);
+			}
+			awaitTermination (executor);
+		}
+	}
+
+	/**
+	 * Wait until the tasks of an executor have ended, interrupting them if
+	 * they take longer than {@link #CANCEL_GRACE_MILLIS}
+	 */
+	private static void awaitTermination (ExecutorService executor) {
+		boolean interrupted = Thread.interrupted ();
+		executor.shutdown ();
+		try {
+			while (true) {
+				try {
+					if (executor.awaitTermination (CANCEL_GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+						break;
+					}
+					SSHHelper.getLoggerWrapper ().warning ("Segments still running " + CANCEL_GRACE_MILLIS + " ms after cancelling them; interrupting");
+				} catch (InterruptedException ex) {
+					interrupted = true;
+				}
+				executor.shutdownNow ();
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread ().interrupt ();
+			}
+		}
+	}
+
+	static boolean isRetriable (Exception ex) {
+		if (ex instanceof SftpException) {
+			int id = ((SftpException) ex).id;
+			return id != ChannelSftpExtDM.SSH_FX_NO_SUCH_FILE && id != ChannelSftpExtDM.SSH_FX_PERMISSION_DENIED;
+		}
+		return true;
+	}
+}
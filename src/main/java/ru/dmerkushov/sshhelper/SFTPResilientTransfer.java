@@ -0,0 +1,303 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelSftpExtDM;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpException;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Downloads and uploads files over connections that may drop. When the
+ * session is lost in the middle of a transfer, a new session is connected
+ * with the same parameters, the remote file is opened again and the transfer
+ * continues from the last acknowledged offset
+ * ({@link ChannelSftpExtDM#getAcknowledgedOffset()}) instead of starting
+ * over.
+ *
+ * Reconnect attempts are spaced with exponential backoff, from
+ * {@link #setBackoff(long, long)} <code>initialBackoffMillis</code> doubling
+ * up to <code>maxBackoffMillis</code>, and given up after
+ * {@link #setMaxReconnects(int)} attempts. Failures that do not come from a
+ * lost connection, e.g. a missing file or a failed authentication, are not
+ * retried.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SFTPResilientTransfer {
+
+	public static final int DEFAULT_MAX_RECONNECTS = 5;
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000L;
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000L;
+
+	private final SSHHost host;
+	private final String filenameEncoding;
+	private int maxReconnects = DEFAULT_MAX_RECONNECTS;
+	private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+	private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+	private volatile int reconnectCount = 0;
+
+	/**
+	 * @param host connection parameters, used for the first connection and
+	 * for every reconnect
+	 * @param filenameEncoding remote filename encoding, may be null
+	 */
+	public SFTPResilientTransfer (SSHHost host, String filenameEncoding) {
+		if (host == null) {
+			throw new NullPointerException ("host");
+		}
+		this.host = host;
+		this.filenameEncoding = filenameEncoding;
+	}
+
+	public int getMaxReconnects () {
+		return maxReconnects;
+	}
+
+	/**
+	 * @param maxReconnects how many times a transfer may reconnect before it
+	 * fails
+	 */
+	public void setMaxReconnects (int maxReconnects) {
+		this.maxReconnects = maxReconnects;
+	}
+
+	/**
+	 * @param initialBackoffMillis wait before the first reconnect
+	 * @param maxBackoffMillis longest wait between reconnects
+	 */
+	public void setBackoff (long initialBackoffMillis, long maxBackoffMillis) {
+		if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+			throw new IllegalArgumentException ("Invalid backoff: " + initialBackoffMillis + ", " + maxBackoffMillis);
+		}
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * @return number of reconnects made by the last transfer, or by the
+	 * current one so far
+	 */
+	public int getReconnectCount () {
+		return reconnectCount;
+	}
+
+	/**
+	 * Download a remote file into a stream. After a reconnect, the download
+	 * continues with the byte following the last one written to the stream
+	 *
+	 * @param remoteFilename
+	 * @param dst
+	 * @return number of bytes written to the stream
+	 * @throws SSHHelperException
+	 */
+	public long download (String remoteFilename, OutputStream dst) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (remoteFilename, dst);
+
+		reconnectCount = 0;
+		String quoted = SFTPTreeTransfer.quoteRemotePath (remoteFilename);
+		long offset = 0;
+
+		while (true) {
+			Session session = null;
+			ChannelSftpExtDM channelSftp = null;
+			try {
+				session = connect ();
+				channelSftp = SSHHelper.openChannelSftpExtDM (session, filenameEncoding);
+				channelSftp.get (quoted, dst, null, ChannelSftpExtDM.RESUME, offset);
+				offset = channelSftp.getAcknowledgedOffset ();
+				break;
+			} catch (SftpException | SSHHelperException ex) {
+				if (channelSftp != null) {
+					offset = Math.max (offset, channelSftp.getAcknowledgedOffset ());
+				}
+				retryOrThrow (ex, session, remoteFilename, offset);
+			} finally {
+				close (channelSftp, session);
+			}
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting (offset);
+		return offset;
+	}
+
+	/**
+	 * Download a remote file into a local file, which is overwritten
+	 *
+	 * @param remoteFilename
+	 * @param localFilename
+	 * @return size of the file
+	 * @throws SSHHelperException
+	 */
+	public long download (String remoteFilename, String localFilename) throws SSHHelperException {
+		try (OutputStream dst = new FileOutputStream (localFilename)) {
+			return download (remoteFilename, dst);
+		} catch (IOException ex) {
+			throw new SSHHelperException (ex);
+		}
+	}
+
+	/**
+	 * Upload a local file into a remote file, which is overwritten. After a
+	 * reconnect, the remote file is cut back to the last acknowledged offset
+	 * and the upload continues from there
+	 *
+	 * @param localFilename
+	 * @param remoteFilename
+	 * @return size of the file
+	 * @throws SSHHelperException
+	 */
+	public long upload (String localFilename, String remoteFilename) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (localFilename, remoteFilename);
+
+		reconnectCount = 0;
+		String quoted = SFTPTreeTransfer.quoteRemotePath (remoteFilename);
+		long offset = 0;
+		long size;
+
+		try (RandomAccessFile raf = new RandomAccessFile (localFilename, "r")) {
+			FileChannel fileChannel = raf.getChannel ();
+			size = fileChannel.size ();
+
+			while (true) {
+				Session session = null;
+				ChannelSftpExtDM channelSftp = null;
+				try {
+					session = connect ();
+					channelSftp = SSHHelper.openChannelSftpExtDM (session, filenameEncoding);
+					fileChannel.position (offset);
+					if (offset == 0) {
+						channelSftp.put (Channels.newInputStream (fileChannel), quoted, null, ChannelSftpExtDM.OVERWRITE);
+					} else {
+						channelSftp.truncate (quoted, offset);
+						channelSftp.put (Channels.newInputStream (fileChannel), quoted, null, ChannelSftpExtDM.APPEND);
+					}
+					offset = channelSftp.getAcknowledgedOffset ();
+					break;
+				} catch (SftpException | SSHHelperException ex) {
+					if (channelSftp != null) {
+						offset = Math.max (offset, channelSftp.getAcknowledgedOffset ());
+					}
+					retryOrThrow (ex, session, remoteFilename, offset);
+				} finally {
+					close (channelSftp, session);
+				}
+			}
+		} catch (IOException ex) {
+			throw new SSHHelperException (ex);
+		}
+
+		if (offset != size) {
+			throw new SSHHelperException ("Size mismatch after uploading " + remoteFilename + ": expected " + size + ", acknowledged " + offset);
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting (size);
+		return size;
+	}
+
+	private Session connect () throws SSHHelperException {
+		return SSHHelper.openSession (host.getHostname (), host.getPort (), host.getUsername (), host.getPassword (), host.getKnownHostsFilePath (), host.getIdentityFilePath ());
+	}
+
+	private static void close (ChannelSftpExtDM channelSftp, Session session) {
+		if (channelSftp != null) {
+			channelSftp.disconnect ();
+		}
+		if (session != null) {
+			session.disconnect ();
+		}
+	}
+
+	/**
+	 * Wait before the next reconnect, or throw if the failure is not a lost
+	 * connection or the reconnects are used up
+	 */
+	private void retryOrThrow (Exception ex, Session session, String remoteFilename, long offset) throws SSHHelperException {
+		if (!isConnectionLoss (ex, session) || reconnectCount >= maxReconnects) {
+			throw (ex instanceof SSHHelperException) ? (SSHHelperException) ex : new SSHHelperException (ex);
+		}
+
+		long backoff = initialBackoffMillis;
+		for (int i = 0; i < reconnectCount && backoff < maxBackoffMillis; i++) {
+			backoff *= 2;
+		}
+		backoff = Math.min (backoff, maxBackoffMillis);
+
+		reconnectCount++;
+		SSHHelper.getLoggerWrapper ().warning ("Connection lost while transferring " + remoteFilename + " at " + offset + "; reconnect " + reconnectCount + " of " + maxReconnects + " in " + backoff + " ms: " + ex);
+
+		try {
+			Thread.sleep (backoff);
+		} catch (InterruptedException ie) {
+			Thread.currentThread ().interrupt ();
+			throw new SSHHelperException (ie);
+		}
+	}
+
+	/**
+	 * A failure is a lost connection if the session is no longer connected,
+	 * the SFTP status says so, or the session could not be connected because
+	 * of a network failure. Authentication, host key and identity file
+	 * failures are not retried
+	 */
+	private static boolean isConnectionLoss (Exception ex, Session session) {
+		if (session == null) {
+			return isNetworkFailure (ex);
+		}
+		if (!session.isConnected ()) {
+			return true;
+		}
+		if (ex instanceof SftpException) {
+			int id = ((SftpException) ex).id;
+			return id == ChannelSftpExtDM.SSH_FX_CONNECTION_LOST || id == ChannelSftpExtDM.SSH_FX_NO_CONNECTION;
+		}
+		return false;
+	}
+
+	/**
+	 * JSch wraps socket failures into a JSchException, with the IOException
+	 * as the cause or, for failures during the key exchange, only in the
+	 * message
+	 */
+	static boolean isNetworkFailure (Throwable ex) {
+		for (Throwable t = ex; t != null; t = (t.getCause () == t) ? null : t.getCause ()) {
+			if (t instanceof FileNotFoundException) {
+				// A missing identity file
+				return false;
+			}
+			if (t instanceof IOException) {
+				return true;
+			}
+			if (t instanceof JSchException && t.getMessage () != null) {
+				String message = t.getMessage ();
+				if (message.startsWith ("timeout: socket is not established")
+						|| message.startsWith ("Session.connect: java.io.")
+						|| message.startsWith ("Session.connect: java.net.")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+}
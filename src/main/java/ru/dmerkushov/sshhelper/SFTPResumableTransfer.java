@@ -0,0 +1,457 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelSftpExtDM;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Downloads and uploads files in chunks, keeping a journal of the completed
+ * chunks next to the local file, so a transfer interrupted by a crash or a
+ * lost connection continues where it stopped when it is started again.
+ *
+ * Every completed chunk is recorded with its SHA-256 checksum. On resume,
+ * the chunks recorded last, which may have been in flight when the transfer
+ * stopped, are verified against their checksums and transferred again if
+ * they differ; the other recorded chunks are skipped. The journal is
+ * discarded if the source file has changed size or modification time in
+ * between, and deleted when the transfer is complete.
+ *
+ * Several chunks may be transferred at once, each on its own channel.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SFTPResumableTransfer {
+
+	public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+	public static final String JOURNAL_SUFFIX = ".sshjournal";
+
+	private final SFTPChannelSource channels;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private int parallelism = 1;
+
+	private final AtomicLong chunksTransferred = new AtomicLong ();
+	private final AtomicLong chunksSkipped = new AtomicLong ();
+	private final AtomicLong chunksRedone = new AtomicLong ();
+
+	/**
+	 * Open the channels on a session. The session is left open
+	 *
+	 * @param session
+	 * @param filenameEncoding remote filename encoding, may be null
+	 */
+	public SFTPResumableTransfer (Session session, String filenameEncoding) {
+		this.channels = new SFTPChannelSource (session, filenameEncoding);
+	}
+
+	/**
+	 * Open the channels on sessions borrowed from a pool
+	 *
+	 * @param pool
+	 * @param host
+	 * @param filenameEncoding remote filename encoding, may be null
+	 */
+	public SFTPResumableTransfer (SSHSessionPool pool, SSHHost host, String filenameEncoding) {
+		this.channels = new SFTPChannelSource (pool, host, filenameEncoding);
+	}
+
+	public int getChunkSize () {
+		return chunkSize;
+	}
+
+	/**
+	 * @param chunkSize a journal is only resumed with the chunk size it was
+	 * written with
+	 */
+	public void setChunkSize (int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException ("chunkSize must be greater than 0: " + chunkSize);
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	public int getParallelism () {
+		return parallelism;
+	}
+
+	/**
+	 * @param parallelism number of chunks transferred at once
+	 */
+	public void setParallelism (int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException ("parallelism must be greater than 0: " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * @return number of chunks transferred by the last transfer
+	 */
+	public long getChunksTransferred () {
+		return chunksTransferred.get ();
+	}
+
+	/**
+	 * @return number of chunks the last transfer has found complete in the
+	 * journal and skipped
+	 */
+	public long getChunksSkipped () {
+		return chunksSkipped.get ();
+	}
+
+	/**
+	 * @return number of recorded chunks the last transfer has found damaged
+	 * and transferred again
+	 */
+	public long getChunksRedone () {
+		return chunksRedone.get ();
+	}
+
+	/**
+	 * @param localFilename
+	 * @return the journal file used for transfers to or from a local file
+	 */
+	public static File getJournalFile (String localFilename) {
+		return new File (localFilename + JOURNAL_SUFFIX);
+	}
+
+	/**
+	 * Download a remote file, continuing an earlier interrupted download of
+	 * the same file if its journal is found
+	 *
+	 * @param remoteFilename
+	 * @param localFilename
+	 * @return size of the file
+	 * @throws SSHHelperException
+	 */
+	public long download (final String remoteFilename, String localFilename) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (remoteFilename, localFilename);
+
+		resetCounters ();
+		final String quoted = SFTPTreeTransfer.quoteRemotePath (remoteFilename);
+
+		SftpATTRS attrs;
+		ChannelSftpExtDM channelSftp = channels.open ();
+		try {
+			attrs = channelSftp.stat (quoted);
+		} catch (SftpException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			channels.close (channelSftp);
+		}
+		final long size = attrs.getSize ();
+
+		File localFile = new File (localFilename);
+		final SFTPTransferJournal journal = new SFTPTransferJournal (getJournalFile (localFilename), "get", remoteFilename, size, attrs.getMTime (), chunkSize);
+
+		try (RandomAccessFile raf = new RandomAccessFile (localFile, "rw")) {
+			final FileChannel fileChannel = raf.getChannel ();
+
+			Map<Long, String> done = journal.load ();
+			if (fileChannel.size () != size) {
+				done.clear ();
+			}
+			for (Long index : SFTPTransferJournal.lastRecorded (done, parallelism)) {
+				if (!done.get (index).equals (localChecksum (fileChannel, index))) {
+					done.remove (index);
+					chunksRedone.incrementAndGet ();
+				}
+			}
+			journal.rewrite (done);
+			raf.setLength (size);
+
+			runChunks (size, done, new ChunkAction () {
+				@Override
+				public void transfer (ChannelSftpExtDM channelSftp, long index) throws Exception {
+					long offset = index * chunkSize;
+					long length = Math.min (chunkSize, size - offset);
+					long written = channelSftp.getRange (quoted, fileChannel, offset, length, null);
+					if (written != length) {
+						throw new SSHHelperException ("Remote file " + remoteFilename + " ended at " + (offset + written) + " while downloading");
+					}
+					fileChannel.force (false);
+					journal.done (index, localChecksum (fileChannel, index));
+				}
+
+				@Override
+				public void finish (ChannelSftpExtDM channelSftp) {
+				}
+			});
+
+			if (fileChannel.size () != size) {
+				throw new SSHHelperException ("Size mismatch after downloading " + remoteFilename + ": expected " + size + ", local file " + fileChannel.size ());
+			}
+			journal.delete ();
+		} catch (IOException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			try {
+				journal.close ();
+			} catch (IOException ex) {
+				SSHHelper.getLoggerWrapper ().warning ("Cannot close journal " + journal.getFile () + ": " + ex);
+			}
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting (size);
+		return size;
+	}
+
+	/**
+	 * Upload a local file, continuing an earlier interrupted upload of the
+	 * same file if its journal is found. The remote file gets the local
+	 * modification time
+	 *
+	 * @param localFilename
+	 * @param remoteFilename
+	 * @return size of the file
+	 * @throws SSHHelperException
+	 */
+	public long upload (String localFilename, final String remoteFilename) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (localFilename, remoteFilename);
+
+		resetCounters ();
+		final String quoted = SFTPTreeTransfer.quoteRemotePath (remoteFilename);
+
+		File localFile = new File (localFilename);
+		long mtime = localFile.lastModified () / 1000L;
+		final SFTPTransferJournal journal = new SFTPTransferJournal (getJournalFile (localFilename), "put", remoteFilename, localFile.length (), mtime, chunkSize);
+
+		try (RandomAccessFile raf = new RandomAccessFile (localFile, "r")) {
+			final FileChannel fileChannel = raf.getChannel ();
+			final long size = fileChannel.size ();
+
+			Map<Long, String> done = journal.load ();
+
+			ChannelSftpExtDM channelSftp = channels.open ();
+			try {
+				long remoteSize;
+				try {
+					remoteSize = channelSftp.stat (quoted).getSize ();
+				} catch (SftpException ex) {
+					if (ex.id != ChannelSftpExtDM.SSH_FX_NO_SUCH_FILE) {
+						throw ex;
+					}
+					remoteSize = -1;
+				}
+				if (remoteSize != size) {
+					done.clear ();
+				}
+				for (Long index : SFTPTransferJournal.lastRecorded (done, parallelism)) {
+					if (!done.get (index).equals (remoteChecksum (channelSftp, quoted, index, size))) {
+						done.remove (index);
+						chunksRedone.incrementAndGet ();
+					}
+				}
+				if (done.isEmpty ()) {
+					channelSftp.closeHandle (channelSftp.openForWrite (quoted, true));
+					channelSftp.truncate (quoted, size);
+				}
+			} catch (SftpException ex) {
+				throw new SSHHelperException (ex);
+			} finally {
+				channels.close (channelSftp);
+			}
+			journal.rewrite (done);
+
+			final ThreadLocal<byte[]> handles = new ThreadLocal<> ();
+			runChunks (size, done, new ChunkAction () {
+				@Override
+				public void transfer (ChannelSftpExtDM channelSftp, long index) throws Exception {
+					if (handles.get () == null) {
+						handles.set (channelSftp.openForWrite (quoted, false));
+					}
+					long offset = index * chunkSize;
+					long length = Math.min (chunkSize, size - offset);
+					channelSftp.putRange (handles.get (), fileChannel, offset, length, null);
+					journal.done (index, localChecksum (fileChannel, index));
+				}
+
+				@Override
+				public void finish (ChannelSftpExtDM channelSftp) throws SftpException {
+					byte[] handle = handles.get ();
+					handles.remove ();
+					if (handle != null) {
+						channelSftp.closeHandle (handle);
+					}
+				}
+			});
+
+			channelSftp = channels.open ();
+			try {
+				long remoteSize = channelSftp.stat (quoted).getSize ();
+				if (remoteSize != size) {
+					throw new SSHHelperException ("Size mismatch after uploading " + remoteFilename + ": expected " + size + ", remote file " + remoteSize);
+				}
+				channelSftp.setMtime (quoted, (int) mtime);
+			} catch (SftpException ex) {
+				throw new SSHHelperException (ex);
+			} finally {
+				channels.close (channelSftp);
+			}
+			journal.delete ();
+
+			SSHHelper.getLoggerWrapper ().exiting (size);
+			return size;
+		} catch (IOException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			try {
+				journal.close ();
+			} catch (IOException ex) {
+				SSHHelper.getLoggerWrapper ().warning ("Cannot close journal " + journal.getFile () + ": " + ex);
+			}
+		}
+	}
+
+	private void resetCounters () {
+		chunksTransferred.set (0);
+		chunksSkipped.set (0);
+		chunksRedone.set (0);
+	}
+
+	/**
+	 * Transfer the chunks not yet done with <code>parallelism</code>
+	 * workers, each on its own channel
+	 */
+	private void runChunks (long size, Map<Long, String> done, final ChunkAction action) throws SSHHelperException {
+		long count = (size + chunkSize - 1) / chunkSize;
+		final Queue<Long> pending = new ConcurrentLinkedQueue<> ();
+		for (long index = 0; index < count; index++) {
+			if (done.containsKey (index)) {
+				chunksSkipped.incrementAndGet ();
+			} else {
+				pending.add (index);
+			}
+		}
+
+		final AtomicReference<Exception> failure = new AtomicReference<> ();
+		int workers = Math.min (parallelism, Math.max (1, pending.size ()));
+		Thread[] threads = new Thread[workers];
+
+		for (int i = 0; i < workers; i++) {
+			threads[i] = new Thread (new Runnable () {
+				@Override
+				public void run () {
+					ChannelSftpExtDM channelSftp = null;
+					try {
+						Long index;
+						while (failure.get () == null && (index = pending.poll ()) != null) {
+							if (channelSftp == null) {
+								channelSftp = channels.open ();
+							}
+							action.transfer (channelSftp, index);
+							chunksTransferred.incrementAndGet ();
+						}
+						if (channelSftp != null) {
+							action.finish (channelSftp);
+						}
+					} catch (Exception ex) {
+						failure.compareAndSet (null, ex);
+					} finally {
+						channels.close (channelSftp);
+					}
+				}
+			}, "SFTPResumableTransfer-" + i);
+			threads[i].setDaemon (true);
+			threads[i].start ();
+		}
+
+		try {
+			for (Thread thread : threads) {
+				thread.join ();
+			}
+		} catch (InterruptedException ex) {
+			failure.compareAndSet (null, ex);
+			Thread.currentThread ().interrupt ();
+		}
+
+		Exception ex = failure.get ();
+		if (ex instanceof SSHHelperException) {
+			throw (SSHHelperException) ex;
+		} else if (ex != null) {
+			throw new SSHHelperException (ex);
+		}
+	}
+
+	private String localChecksum (FileChannel fileChannel, long index) throws IOException, SSHHelperException {
+		long offset = index * chunkSize;
+		long end = Math.min (offset + chunkSize, fileChannel.size ());
+		MessageDigest digest = newDigest ();
+		ByteBuffer buffer = ByteBuffer.allocate (64 * 1024);
+		while (offset < end) {
+			buffer.clear ();
+			buffer.limit ((int) Math.min (buffer.capacity (), end - offset));
+			int n = fileChannel.read (buffer, offset);
+			if (n < 0) {
+				break;
+			}
+			buffer.flip ();
+			digest.update (buffer);
+			offset += n;
+		}
+		return RemoteChecksums.toHex (digest.digest ());
+	}
+
+	private String remoteChecksum (ChannelSftpExtDM channelSftp, String quoted, long index, long size) throws SftpException, SSHHelperException {
+		long offset = index * chunkSize;
+		long length = Math.min (chunkSize, size - offset);
+		MessageDigest digest = newDigest ();
+		byte[] buffer = new byte[64 * 1024];
+		try (InputStream in = channelSftp.get (quoted, null, offset)) {
+			while (length > 0) {
+				int n = in.read (buffer, 0, (int) Math.min (buffer.length, length));
+				if (n < 0) {
+					break;
+				}
+				digest.update (buffer, 0, n);
+				length -= n;
+			}
+		} catch (IOException ex) {
+			throw new SSHHelperException (ex);
+		}
+		return RemoteChecksums.toHex (digest.digest ());
+	}
+
+	private static MessageDigest newDigest () throws SSHHelperException {
+		try {
+			return MessageDigest.getInstance ("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new SSHHelperException (ex);
+		}
+	}
+
+	private interface ChunkAction {
+
+		void transfer (ChannelSftpExtDM channelSftp, long index) throws Exception;
+
+		void finish (ChannelSftpExtDM channelSftp) throws Exception;
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What a sync by {@link SFTPTreeTransfer#sync(java.lang.String, java.lang.String, boolean, boolean, boolean)}
+ * has done, or would do in a dry run. Paths are remote paths.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SFTPSyncReport {
+
+	private final boolean dryRun;
+	final List<String> createdDirs = new ArrayList<> ();
+	final List<String> newFiles = new ArrayList<> ();
+	final List<String> changedFiles = new ArrayList<> ();
+	final List<String> deleted = new ArrayList<> ();
+	long unchangedFiles = 0;
+	long bytesTransferred = 0;
+	long bytesAvoided = 0;
+
+	SFTPSyncReport (boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	/**
+	 * @return true if nothing has been changed on the remote side
+	 */
+	public boolean isDryRun () {
+		return dryRun;
+	}
+
+	public List<String> getCreatedDirs () {
+		return Collections.unmodifiableList (createdDirs);
+	}
+
+	/**
+	 * @return files missing on the remote side
+	 */
+	public List<String> getNewFiles () {
+		return Collections.unmodifiableList (newFiles);
+	}
+
+	/**
+	 * @return files that differ from their local counterparts
+	 */
+	public List<String> getChangedFiles () {
+		return Collections.unmodifiableList (changedFiles);
+	}
+
+	/**
+	 * @return extraneous remote files and directories, deepest first
+	 */
+	public List<String> getDeleted () {
+		return Collections.unmodifiableList (deleted);
+	}
+
+	public long getUnchangedFiles () {
+		return unchangedFiles;
+	}
+
+	/**
+	 * @return size of the new and changed files
+	 */
+	public long getBytesTransferred () {
+		return bytesTransferred;
+	}
+
+	/**
+	 * @return size of the unchanged files, which have not been transferred
+	 */
+	public long getBytesAvoided () {
+		return bytesAvoided;
+	}
+
+	@Override
+	public String toString () {
+		StringBuilder sb = new StringBuilder ();
+		sb.append (dryRun ? "Sync (dry run): " : "Sync: ");
+		sb.append (newFiles.size ()).append (" new, ");
+		sb.append (changedFiles.size ()).append (" changed, ");
+		sb.append (unchangedFiles).append (" unchanged, ");
+		sb.append (deleted.size ()).append (" deleted, ");
+		sb.append (createdDirs.size ()).append (" directories created; ");
+		sb.append (bytesTransferred).append (" bytes transferred, ");
+		sb.append (bytesAvoided).append (" bytes avoided");
+		for (String path : createdDirs) {
+			sb.append ("\nmkdir ").append (path);
+		}
+		for (String path : newFiles) {
+			sb.append ("\nnew ").append (path);
+		}
+		for (String path : changedFiles) {
+			sb.append ("\nchanged ").append (path);
+		}
+		for (String path : deleted) {
+			sb.append ("\ndelete ").append (path);
+		}
+		return sb.toString ();
+	}
+}
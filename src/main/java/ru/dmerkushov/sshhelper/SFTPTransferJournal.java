@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A small local file that records which chunks of a transfer are complete,
+ * with a SHA-256 checksum of every chunk, so an interrupted transfer can be
+ * continued after a restart.
+ *
+ * The journal is a text file: a header that identifies the transfer, then
+ * one line per completed chunk, appended and synced as each chunk is done.
+ * Chunks may complete in any order. A torn last line is ignored on load.
+ *
+ * @author Dmitriy Merkushov
+ */
+class SFTPTransferJournal {
+
+	private static final String MAGIC = "sshhelper-journal 1";
+	private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+	private final File file;
+	private final String header;
+	private FileOutputStream out = null;
+
+	/**
+	 * @param file
+	 * @param direction get or put
+	 * @param remoteFilename
+	 * @param size size of the transferred file
+	 * @param mtime modification time of the source file
+	 * @param chunkSize
+	 */
+	SFTPTransferJournal (File file, String direction, String remoteFilename, long size, long mtime, int chunkSize) {
+		this.file = file;
+		this.header = MAGIC + "\n"
+				+ "direction " + direction + "\n"
+				+ "remote " + remoteFilename.replace ("\n", "\\n") + "\n"
+				+ "size " + size + "\n"
+				+ "mtime " + mtime + "\n"
+				+ "chunk " + chunkSize + "\n";
+	}
+
+	File getFile () {
+		return file;
+	}
+
+	/**
+	 * Read the completed chunks recorded for this same transfer
+	 *
+	 * @return checksums by chunk index in the order they were recorded;
+	 * empty if there is no journal or it belongs to another transfer or to
+	 * another version of the source file
+	 * @throws IOException
+	 */
+	Map<Long, String> load () throws IOException {
+		Map<Long, String> chunks = new LinkedHashMap<> ();
+		if (!file.isFile ()) {
+			return chunks;
+		}
+
+		try (BufferedReader reader = new BufferedReader (new InputStreamReader (new FileInputStream (file), UTF8))) {
+			StringBuilder fileHeader = new StringBuilder ();
+			for (int i = 0; i < 6; i++) {
+				String line = reader.readLine ();
+				if (line == null) {
+					return chunks;
+				}
+				fileHeader.append (line).append ('\n');
+			}
+			if (!fileHeader.toString ().equals (header)) {
+				return chunks;
+			}
+
+			String line;
+			while ((line = reader.readLine ()) != null) {
+				String[] parts = line.split (" ");
+				if (parts.length != 3 || !parts[0].equals ("done") || parts[2].length () != 64) {
+					continue;
+				}
+				try {
+					chunks.put (Long.parseLong (parts[1]), parts[2]);
+				} catch (NumberFormatException ex) {
+				}
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Start the journal over with the header and the given chunks, and keep
+	 * it open for appending
+	 *
+	 * @param chunks
+	 * @throws IOException
+	 */
+	synchronized void rewrite (Map<Long, String> chunks) throws IOException {
+		close ();
+
+		File tmp = new File (file.getPath () + ".tmp");
+		try (FileOutputStream tmpOut = new FileOutputStream (tmp)) {
+			StringBuilder sb = new StringBuilder (header);
+			for (Map.Entry<Long, String> chunk : chunks.entrySet ()) {
+				sb.append ("done ").append (chunk.getKey ()).append (' ').append (chunk.getValue ()).append ('\n');
+			}
+			tmpOut.write (sb.toString ().getBytes (UTF8));
+			tmpOut.getChannel ().force (true);
+		}
+		if (file.exists () && !file.delete ()) {
+			throw new IOException ("Cannot replace journal " + file);
+		}
+		if (!tmp.renameTo (file)) {
+			throw new IOException ("Cannot rename " + tmp + " to " + file);
+		}
+
+		out = new FileOutputStream (file, true);
+	}
+
+	/**
+	 * Record a completed chunk and sync the journal to disk
+	 *
+	 * @param index
+	 * @param checksum
+	 * @throws IOException
+	 */
+	synchronized void done (long index, String checksum) throws IOException {
+		out.write (("done " + index + " " + checksum + "\n").getBytes (UTF8));
+		out.getChannel ().force (false);
+	}
+
+	synchronized void close () throws IOException {
+		if (out != null) {
+			out.close ();
+			out = null;
+		}
+	}
+
+	/**
+	 * Remove the journal once the transfer is complete
+	 *
+	 * @throws IOException
+	 */
+	synchronized void delete () throws IOException {
+		close ();
+		if (file.exists () && !file.delete ()) {
+			throw new IOException ("Cannot delete journal " + file);
+		}
+	}
+
+	/**
+	 * @param chunks checksums by chunk index in the order they were recorded
+	 * @param count
+	 * @return the indexes of the last <code>count</code> recorded chunks
+	 */
+	static List<Long> lastRecorded (Map<Long, String> chunks, int count) {
+		List<Long> all = new ArrayList<> (chunks.keySet ());
+		return all.subList (Math.max (0, all.size () - count), all.size ());
+	}
+}
@@ -0,0 +1,724 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelSftpExtDM;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
+import com.jcraft.jsch.SftpProgressMonitor;
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Transfers whole directory trees over several SFTP channels at once.
+ *
+ * The tree is walked first; then a pool of workers transfers the files, each
+ * worker on its own channel. Files of at least
+ * {@link #setLargeFileThreshold(long)} bytes are queued apart from the
+ * smaller ones, and a part of the workers takes the large files first, so a
+ * huge file does not hold back a queue of tiny ones. A worker whose own queue
+ * is empty helps with the other one.
+ *
+ * The channels are opened either all on one session, or each on a session
+ * borrowed from an {@link SSHSessionPool}. Counters of the last transfer may
+ * be read while it is in progress.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SFTPTreeTransfer {
+
+	public static final int DEFAULT_WORKERS = 4;
+	public static final long DEFAULT_LARGE_FILE_THRESHOLD = 16L * 1024L * 1024L;
+
+	private final SFTPChannelSource channels;
+	private int workers = DEFAULT_WORKERS;
+	private int largeFileWorkers = 1;
+	private long largeFileThreshold = DEFAULT_LARGE_FILE_THRESHOLD;
+
+	private final AtomicLong filesTotal = new AtomicLong ();
+	private final AtomicLong filesDone = new AtomicLong ();
+	private final AtomicLong bytesDone = new AtomicLong ();
+	private volatile long startNanos = 0;
+	private volatile long endNanos = 0;
+
+	/**
+	 * Counts the bytes of all the files in flight, so the rate is current
+	 * even while large files are transferred
+	 */
+	final SftpProgressMonitor byteCounter = new SftpProgressMonitor () {
+		@Override
+		public void init (int op, String src, String dest, long max) {
+		}
+
+		@Override
+		public boolean count (long count) {
+			bytesDone.addAndGet (count);
+			return true;
+		}
+
+		@Override
+		public void end () {
+		}
+	};
+
+	/**
+	 * Uploads a file and sets its local modification time on the remote copy
+	 */
+	private final FileAction uploadAction = new FileAction () {
+		@Override
+		public void transfer (ChannelSftpExtDM channelSftp, FileItem item) throws SftpException {
+			String remotePath = quoteRemotePath (item.remotePath);
+			channelSftp.put (item.localFile.toPath (), remotePath, byteCounter, ChannelSftpExtDM.OVERWRITE);
+			channelSftp.setMtime (remotePath, item.mtime);
+		}
+	};
+
+	/**
+	 * Open all the channels on one session. The session is left open
+	 *
+	 * @param session
+	 * @param filenameEncoding remote filename encoding, may be null
+	 */
+	public SFTPTreeTransfer (Session session, String filenameEncoding) {
+		this.channels = new SFTPChannelSource (session, filenameEncoding);
+	}
+
+	/**
+	 * Open each channel on a session borrowed from a pool
+	 *
+	 * @param pool
+	 * @param host
+	 * @param filenameEncoding remote filename encoding, may be null
+	 */
+	public SFTPTreeTransfer (SSHSessionPool pool, SSHHost host, String filenameEncoding) {
+		this.channels = new SFTPChannelSource (pool, host, filenameEncoding);
+	}
+
+	public int getWorkers () {
+		return workers;
+	}
+
+	/**
+	 * @param workers number of files transferred at once
+	 * @param largeFileWorkers how many of the workers take large files first
+	 */
+	public void setWorkers (int workers, int largeFileWorkers) {
+		if (workers <= 0) {
+			throw new IllegalArgumentException ("workers must be greater than 0: " + workers);
+		}
+		if (largeFileWorkers < 0 || largeFileWorkers > workers) {
+			throw new IllegalArgumentException ("largeFileWorkers must be between 0 and " + workers + ": " + largeFileWorkers);
+		}
+		this.workers = workers;
+		this.largeFileWorkers = largeFileWorkers;
+	}
+
+	public int getLargeFileWorkers () {
+		return largeFileWorkers;
+	}
+
+	public long getLargeFileThreshold () {
+		return largeFileThreshold;
+	}
+
+	/**
+	 * @param largeFileThreshold files of this size or bigger are queued as
+	 * large ones
+	 */
+	public void setLargeFileThreshold (long largeFileThreshold) {
+		this.largeFileThreshold = largeFileThreshold;
+	}
+
+	/**
+	 * @return number of files found to transfer in the last transfer
+	 */
+	public long getFileCount () {
+		return filesTotal.get ();
+	}
+
+	/**
+	 * @return number of files transferred in the last transfer
+	 */
+	public long getFilesDone () {
+		return filesDone.get ();
+	}
+
+	/**
+	 * @return number of bytes transferred in the last transfer
+	 */
+	public long getBytesDone () {
+		return bytesDone.get ();
+	}
+
+	/**
+	 * @return duration of the last transfer, or of the current one so far
+	 */
+	public long getElapsedMillis () {
+		if (startNanos == 0) {
+			return 0;
+		}
+		long end = (endNanos == 0) ? System.nanoTime () : endNanos;
+		return (end - startNanos) / 1000000L;
+	}
+
+	/**
+	 * @return aggregate transfer rate of the last transfer, or of the current
+	 * one so far
+	 */
+	public long getBytesPerSecond () {
+		long elapsed = getElapsedMillis ();
+		return (elapsed == 0) ? 0 : bytesDone.get () * 1000L / elapsed;
+	}
+
+	/**
+	 * Download a remote directory tree into a local directory. Local
+	 * directories are created as needed and existing local files are
+	 * overwritten. Files keep their remote modification time. Symbolic links
+	 * to files are followed; links to directories are skipped
+	 *
+	 * @param remoteDir
+	 * @param localDir
+	 * @throws SSHHelperException on the first file that cannot be
+	 * transferred; the other workers stop after their current file
+	 */
+	public void download (String remoteDir, String localDir) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (remoteDir, localDir);
+
+		start ();
+
+		List<FileItem> files = new ArrayList<> ();
+		ChannelSftpExtDM channelSftp = channels.open ();
+		try {
+			walkRemote (channelSftp, remoteDir, new File (localDir), files);
+		} catch (SftpException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			channels.close (channelSftp);
+		}
+
+		runWorkers (files, new FileAction () {
+			@Override
+			public void transfer (ChannelSftpExtDM channelSftp, FileItem item) throws SftpException {
+				channelSftp.get (quoteRemotePath (item.remotePath), item.localFile.toPath (), byteCounter, ChannelSftpExtDM.OVERWRITE);
+				item.localFile.setLastModified (item.mtime * 1000L);
+			}
+		});
+
+		SSHHelper.getLoggerWrapper ().exiting ();
+	}
+
+	private void walkRemote (ChannelSftpExtDM channelSftp, String remoteDir, File localDir, List<FileItem> files) throws SftpException, SSHHelperException {
+		Deque<Object[]> dirs = new ArrayDeque<> ();
+		dirs.add (new Object[]{remoteDir, localDir});
+
+		while (!dirs.isEmpty ()) {
+			Object[] dir = dirs.poll ();
+			String remotePath = (String) dir[0];
+			File localPath = (File) dir[1];
+
+			if (!localPath.isDirectory () && !localPath.mkdirs ()) {
+				throw new SSHHelperException ("Cannot create local directory " + localPath);
+			}
+
+			for (Object o : channelSftp.ls (quoteRemotePath (remotePath))) {
+				ChannelSftpExtDM.LsEntry entry = (ChannelSftpExtDM.LsEntry) o;
+				String name = entry.getFilename ();
+				if (name.equals (".") || name.equals ("..")) {
+					continue;
+				}
+
+				String childRemote = remotePath.endsWith ("/") ? remotePath + name : remotePath + "/" + name;
+				File childLocal = new File (localPath, name);
+				SftpATTRS attrs = entry.getAttrs ();
+
+				if (attrs.isLink ()) {
+					attrs = channelSftp.stat (quoteRemotePath (childRemote));
+					if (attrs.isDir ()) {
+						SSHHelper.getLoggerWrapper ().warning ("Skipping link to directory " + childRemote);
+						continue;
+					}
+				}
+
+				if (attrs.isDir ()) {
+					dirs.add (new Object[]{childRemote, childLocal});
+				} else if (attrs.isReg ()) {
+					files.add (new FileItem (childRemote, childLocal, attrs.getSize (), attrs.getMTime ()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Upload a local directory tree into a remote directory. The remote
+	 * directory skeleton is created first, one pipelined batch of mkdir
+	 * requests per tree level; then the files are uploaded by the workers,
+	 * overwriting existing remote files. Files keep their local modification
+	 * time. Symbolic links to directories are skipped
+	 *
+	 * @param localDir
+	 * @param remoteDir
+	 * @throws SSHHelperException on the first file that cannot be
+	 * transferred; the other workers stop after their current file
+	 */
+	public void upload (String localDir, String remoteDir) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (localDir, remoteDir);
+
+		start ();
+
+		List<List<String>> levels = new ArrayList<> ();
+		List<FileItem> files = new ArrayList<> ();
+		walkLocal (new File (localDir), remoteDir, levels, files);
+
+		ChannelSftpExtDM channelSftp = channels.open ();
+		try {
+			for (List<String> level : levels) {
+				channelSftp.mkdirs (level);
+			}
+		} catch (SftpException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			channels.close (channelSftp);
+		}
+
+		runWorkers (files, uploadAction);
+
+		SSHHelper.getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * Make a remote directory tree the same as a local one, transferring only
+	 * what differs. A file is considered unchanged if the remote file has
+	 * the same size and modification time; with <code>checksum</code>, if it
+	 * has the same size and the same SHA-256 checksum, computed on the
+	 * server with <code>sha256sum</code> over exec. New and changed files are
+	 * uploaded by the workers, several at once.
+	 *
+	 * With <code>delete</code>, remote files and directories that do not
+	 * exist locally are removed before anything is uploaded, and a remote
+	 * file in place of a local directory, or the other way round, is
+	 * replaced. Without it, such a conflict is an error.
+	 *
+	 * @param localDir
+	 * @param remoteDir
+	 * @param delete remove extraneous remote files and directories
+	 * @param checksum compare same-size files by checksum instead of
+	 * modification time
+	 * @param dryRun only compare and report, change nothing
+	 * @return what has been done, or would be done in a dry run
+	 * @throws SSHHelperException
+	 */
+	public SFTPSyncReport sync (String localDir, String remoteDir, boolean delete, boolean checksum, boolean dryRun) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (localDir, remoteDir, delete, checksum, dryRun);
+
+		start ();
+
+		SFTPSyncReport report = new SFTPSyncReport (dryRun);
+
+		List<List<String>> levels = new ArrayList<> ();
+		List<FileItem> files = new ArrayList<> ();
+		walkLocal (new File (localDir), remoteDir, levels, files);
+
+		Map<String, SftpATTRS> remote;
+		Set<String> replaced = new HashSet<> ();
+		List<List<String>> missingLevels = new ArrayList<> ();
+		List<FileItem> transfers = new ArrayList<> ();
+		List<FileItem> touches = new ArrayList<> ();
+
+		ChannelSftpExtDM channelSftp = channels.open ();
+		try {
+			remote = listRemote (channelSftp, remoteDir);
+
+			Set<String> localPaths = new HashSet<> ();
+
+			for (List<String> level : levels) {
+				List<String> missing = new ArrayList<> ();
+				for (String dir : level) {
+					localPaths.add (dir);
+					SftpATTRS attrs = remote.get (dir);
+					if (attrs != null && !attrs.isDir ()) {
+						conflict (dir, delete, replaced);
+						attrs = null;
+					}
+					if (attrs == null) {
+						missing.add (dir);
+					}
+				}
+				if (!missing.isEmpty ()) {
+					missingLevels.add (missing);
+					report.createdDirs.addAll (missing);
+				}
+			}
+
+			List<FileItem> sameSize = new ArrayList<> ();
+			for (FileItem item : files) {
+				localPaths.add (item.remotePath);
+				SftpATTRS attrs = remote.get (item.remotePath);
+				if (attrs != null && attrs.isDir ()) {
+					conflict (item.remotePath, delete, replaced);
+					attrs = null;
+				}
+
+				if (attrs == null) {
+					report.newFiles.add (item.remotePath);
+					report.bytesTransferred += item.size;
+					transfers.add (item);
+				} else if (!attrs.isReg () || attrs.getSize () != item.size) {
+					changed (item, report, transfers);
+				} else if (checksum) {
+					sameSize.add (item);
+				} else if (attrs.getMTime () != item.mtime) {
+					changed (item, report, transfers);
+				} else {
+					unchanged (item, report);
+				}
+			}
+
+			if (!sameSize.isEmpty ()) {
+				List<String> paths = new ArrayList<> ();
+				for (FileItem item : sameSize) {
+					paths.add (item.remotePath);
+				}
+				String charset = channels.getFilenameEncoding ();
+				if (charset == null || !Charset.isSupported (charset)) {
+					charset = "UTF-8";
+				}
+				Map<String, String> remoteChecksums = RemoteChecksums.compute (channelSftp.getSession (), "sha256sum", paths, charset);
+
+				for (FileItem item : sameSize) {
+					String remoteChecksum = remoteChecksums.get (item.remotePath);
+					if (remoteChecksum != null && remoteChecksum.equals (RemoteChecksums.local (item.localFile, "SHA-256"))) {
+						unchanged (item, report);
+						if (remote.get (item.remotePath).getMTime () != item.mtime) {
+							touches.add (item);
+						}
+					} else {
+						changed (item, report, transfers);
+					}
+				}
+			}
+
+			if (delete) {
+				for (String path : remote.keySet ()) {
+					if (!localPaths.contains (path) || replaced.contains (path)) {
+						report.deleted.add (path);
+					}
+				}
+				Collections.reverse (report.deleted);
+			}
+
+			if (!dryRun) {
+				for (String path : report.deleted) {
+					if (remote.get (path).isDir ()) {
+						channelSftp.rmdir (quoteRemotePath (path));
+					} else {
+						channelSftp.rm (quoteRemotePath (path));
+					}
+				}
+				for (List<String> level : missingLevels) {
+					channelSftp.mkdirs (level);
+				}
+				for (FileItem item : touches) {
+					channelSftp.setMtime (quoteRemotePath (item.remotePath), item.mtime);
+				}
+			}
+		} catch (SftpException | JSchException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			channels.close (channelSftp);
+		}
+
+		if (!dryRun) {
+			runWorkers (transfers, uploadAction);
+		} else {
+			endNanos = System.nanoTime ();
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting (report);
+		return report;
+	}
+
+	private static void conflict (String path, boolean delete, Set<String> replaced) throws SSHHelperException {
+		if (!delete) {
+			throw new SSHHelperException ("Remote " + path + " is of a different type than the local one");
+		}
+		replaced.add (path);
+	}
+
+	private static void changed (FileItem item, SFTPSyncReport report, List<FileItem> transfers) {
+		report.changedFiles.add (item.remotePath);
+		report.bytesTransferred += item.size;
+		transfers.add (item);
+	}
+
+	private static void unchanged (FileItem item, SFTPSyncReport report) {
+		report.unchangedFiles++;
+		report.bytesAvoided += item.size;
+	}
+
+	/**
+	 * List a remote tree breadth first, the root directory included. Links
+	 * are not followed
+	 *
+	 * @param channelSftp
+	 * @param remoteDir
+	 * @return attributes by path, parents before children; empty if the
+	 * root does not exist
+	 * @throws SftpException
+	 */
+	private Map<String, SftpATTRS> listRemote (ChannelSftpExtDM channelSftp, String remoteDir) throws SftpException {
+		Map<String, SftpATTRS> result = new LinkedHashMap<> ();
+
+		SftpATTRS root;
+		try {
+			root = channelSftp.stat (quoteRemotePath (remoteDir));
+		} catch (SftpException ex) {
+			if (ex.id == ChannelSftpExtDM.SSH_FX_NO_SUCH_FILE) {
+				return result;
+			}
+			throw ex;
+		}
+		result.put (remoteDir, root);
+		if (!root.isDir ()) {
+			return result;
+		}
+
+		Deque<String> dirs = new ArrayDeque<> ();
+		dirs.add (remoteDir);
+		while (!dirs.isEmpty ()) {
+			String remotePath = dirs.poll ();
+			for (Object o : channelSftp.ls (quoteRemotePath (remotePath))) {
+				ChannelSftpExtDM.LsEntry entry = (ChannelSftpExtDM.LsEntry) o;
+				String name = entry.getFilename ();
+				if (name.equals (".") || name.equals ("..")) {
+					continue;
+				}
+				String childRemote = remotePath.endsWith ("/") ? remotePath + name : remotePath + "/" + name;
+				result.put (childRemote, entry.getAttrs ());
+				if (entry.getAttrs ().isDir ()) {
+					dirs.add (childRemote);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Walk a local tree breadth first
+	 *
+	 * @param localDir
+	 * @param remoteDir
+	 * @param levels receives the remote directories to create, one list per
+	 * tree level
+	 * @param files receives the files
+	 * @throws SSHHelperException
+	 */
+	private void walkLocal (File localDir, String remoteDir, List<List<String>> levels, List<FileItem> files) throws SSHHelperException {
+		if (!localDir.isDirectory ()) {
+			throw new SSHHelperException ("Not a local directory: " + localDir);
+		}
+
+		List<Object[]> level = new ArrayList<> ();
+		level.add (new Object[]{localDir, remoteDir});
+
+		while (!level.isEmpty ()) {
+			List<String> remoteDirs = new ArrayList<> ();
+			List<Object[]> next = new ArrayList<> ();
+
+			for (Object[] dir : level) {
+				File localPath = (File) dir[0];
+				String remotePath = (String) dir[1];
+				remoteDirs.add (remotePath);
+
+				File[] children = localPath.listFiles ();
+				if (children == null) {
+					throw new SSHHelperException ("Cannot list local directory " + localPath);
+				}
+				for (File child : children) {
+					String childRemote = remotePath.endsWith ("/") ? remotePath + child.getName () : remotePath + "/" + child.getName ();
+					if (child.isDirectory ()) {
+						if (Files.isSymbolicLink (child.toPath ())) {
+							SSHHelper.getLoggerWrapper ().warning ("Skipping link to directory " + child);
+							continue;
+						}
+						next.add (new Object[]{child, childRemote});
+					} else if (child.isFile ()) {
+						files.add (new FileItem (childRemote, child, child.length (), (int) (child.lastModified () / 1000L)));
+					}
+				}
+			}
+
+			levels.add (remoteDirs);
+			level = next;
+		}
+	}
+
+	void start () {
+		filesTotal.set (0);
+		filesDone.set (0);
+		bytesDone.set (0);
+		startNanos = System.nanoTime ();
+		endNanos = 0;
+	}
+
+	/**
+	 * Transfer the files with the worker pool and wait for all of them
+	 *
+	 * @param files
+	 * @param action
+	 * @throws SSHHelperException the first failure
+	 */
+	void runWorkers (List<FileItem> files, final FileAction action) throws SSHHelperException {
+		final Queue<FileItem> small = new ConcurrentLinkedQueue<> ();
+		final Queue<FileItem> large = new ConcurrentLinkedQueue<> ();
+		for (FileItem item : files) {
+			if (item.size >= largeFileThreshold) {
+				large.add (item);
+			} else {
+				small.add (item);
+			}
+		}
+		filesTotal.set (files.size ());
+
+		final AtomicReference<Exception> failure = new AtomicReference<> ();
+		int count = Math.min (workers, Math.max (1, files.size ()));
+		Thread[] threads = new Thread[count];
+
+		for (int i = 0; i < count; i++) {
+			final boolean largeFirst = i < largeFileWorkers;
+			threads[i] = new Thread (new Runnable () {
+				@Override
+				public void run () {
+					ChannelSftpExtDM channelSftp = null;
+					try {
+						while (failure.get () == null) {
+							FileItem item = largeFirst ? poll (large, small) : poll (small, large);
+							if (item == null) {
+								break;
+							}
+							if (channelSftp == null) {
+								channelSftp = channels.open ();
+							}
+							action.transfer (channelSftp, item);
+							filesDone.incrementAndGet ();
+						}
+					} catch (Exception ex) {
+						failure.compareAndSet (null, ex);
+					} finally {
+						channels.close (channelSftp);
+					}
+				}
+			}, "SFTPTreeTransfer-" + i);
+			threads[i].setDaemon (true);
+			threads[i].start ();
+		}
+
+		try {
+			for (Thread thread : threads) {
+				thread.join ();
+			}
+		} catch (InterruptedException ex) {
+			failure.compareAndSet (null, ex);
+			Thread.currentThread ().interrupt ();
+		} finally {
+			endNanos = System.nanoTime ();
+		}
+
+		Exception ex = failure.get ();
+		if (ex instanceof SSHHelperException) {
+			throw (SSHHelperException) ex;
+		} else if (ex != null) {
+			throw new SSHHelperException (ex);
+		}
+	}
+
+	private static FileItem poll (Queue<FileItem> first, Queue<FileItem> second) {
+		FileItem item = first.poll ();
+		return (item != null) ? item : second.poll ();
+	}
+
+	/**
+	 * Escape the characters that SFTP get, put and ls treat as wildcards
+	 *
+	 * @param path
+	 * @return
+	 */
+	static String quoteRemotePath (String path) {
+		StringBuilder sb = new StringBuilder (path.length ());
+		for (int i = 0; i < path.length (); i++) {
+			char c = path.charAt (i);
+			if (c == '\\' || c == '*' || c == '?') {
+				sb.append ('\\');
+			}
+			sb.append (c);
+		}
+		return sb.toString ();
+	}
+
+	/**
+	 * Undo {@link #quoteRemotePath(java.lang.String)}: drop each backslash
+	 * and keep the character after it
+	 *
+	 * @param path
+	 * @return
+	 */
+	static String unquoteRemotePath (String path) {
+		StringBuilder sb = new StringBuilder (path.length ());
+		for (int i = 0; i < path.length (); i++) {
+			char c = path.charAt (i);
+			if (c == '\\' && i + 1 < path.length ()) {
+				c = path.charAt (++i);
+			}
+			sb.append (c);
+		}
+		return sb.toString ();
+	}
+
+	static class FileItem {
+
+		final String remotePath;
+		final File localFile;
+		final long size;
+		final int mtime;
+
+		FileItem (String remotePath, File localFile, long size, int mtime) {
+			this.remotePath = remotePath;
+			this.localFile = localFile;
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
+
+	interface FileAction {
+
+		void transfer (ChannelSftpExtDM channelSftp, FileItem item) throws SftpException, SSHHelperException;
+	}
+}
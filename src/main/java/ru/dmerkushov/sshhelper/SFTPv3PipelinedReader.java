@@ -0,0 +1,291 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import ch.ethz.ssh2.Connection;
+import ch.ethz.ssh2.SFTPv3Client;
+import ch.ethz.ssh2.SFTPv3FileHandle;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads remote files over Ganymed SFTP with several read requests in flight.
+ *
+ * Ganymed's SFTPv3Client waits for the reply to every read before it sends
+ * the next one, so a single client reads no more than 32 KB per round trip.
+ * This reader opens {@link #setWindow(int)} SFTP channels on the same
+ * connection, each reading blocks of the file at its own offsets, and writes
+ * the blocks to the sink in file order. Offsets are long, so files over 2 GB
+ * are read too.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SFTPv3PipelinedReader {
+
+	public static final int DEFAULT_WINDOW = 8;
+
+	/**
+	 * The largest read Ganymed SFTP allows
+	 */
+	static final int BLOCK_SIZE = 32768;
+
+	private final Connection conn;
+	private final String charsetName;
+	private int window = DEFAULT_WINDOW;
+
+	private volatile long bytesRead = 0;
+
+	/**
+	 * @param conn
+	 * @param charsetName remote filename charset, may be null
+	 */
+	public SFTPv3PipelinedReader (Connection conn, String charsetName) {
+		if (conn == null) {
+			throw new NullPointerException ("conn");
+		}
+		this.conn = conn;
+		this.charsetName = charsetName;
+	}
+
+	public int getWindow () {
+		return window;
+	}
+
+	/**
+	 * @param window number of read requests kept in flight, each on its own
+	 * SFTP channel
+	 */
+	public void setWindow (int window) {
+		if (window <= 0) {
+			throw new IllegalArgumentException ("window must be greater than 0: " + window);
+		}
+		this.window = window;
+	}
+
+	/**
+	 * @return number of bytes written to the sink by the last read, or by the
+	 * current one so far
+	 */
+	public long getBytesRead () {
+		return bytesRead;
+	}
+
+	/**
+	 * Read a remote file into a sink. The sink is written from the calling
+	 * thread and is not closed
+	 *
+	 * @param filename
+	 * @param sink
+	 * @return number of bytes read
+	 * @throws SSHHelperException
+	 */
+	public long read (final String filename, OutputStream sink) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (filename, sink);
+
+		if (charsetName != null && !Charset.isSupported (charsetName)) {
+			throw new SSHHelperException ("Charset " + charsetName + " is not supported");
+		}
+
+		bytesRead = 0;
+		int readers = window;
+		final Blocks blocks = new Blocks (readers, readers * 2);
+		ExecutorService executor = Executors.newFixedThreadPool (readers);
+		long total = 0;
+		try {
+			for (int i = 0; i < readers; i++) {
+				executor.execute (new Runnable () {
+					@Override
+					public void run () {
+						readBlocks (filename, blocks);
+					}
+				});
+			}
+
+			byte[] block;
+			while ((block = blocks.next ()) != null) {
+				try {
+					sink.write (block);
+				} catch (IOException ioE) {
+					throw new SSHHelperException ("Received an IOException when writing the contents of file '" + filename + "'. It says,\n" + ioE.getMessage ());
+				}
+				total += block.length;
+				bytesRead = total;
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread ().interrupt ();
+			throw new SSHHelperException (ex);
+		} finally {
+			blocks.abort ();
+			executor.shutdownNow ();
+		}
+
+		SSHHelper.getLoggerWrapper ().info ("Successfully read " + String.valueOf (total) + " bytes from file '" + filename + "'");
+
+		SSHHelper.getLoggerWrapper ().exiting (total);
+		return total;
+	}
+
+	private void readBlocks (String filename, Blocks blocks) {
+		SFTPv3Client client = null;
+		SFTPv3FileHandle handle = null;
+		try {
+			try {
+				client = new SFTPv3Client (conn);
+				if (charsetName != null) {
+					client.setCharset (charsetName);
+				}
+				handle = client.openFileRO (filename);
+			} catch (IOException ioE) {
+				// The server may limit the channels per connection: the read
+				// goes on with fewer requests in flight as long as one
+				// channel could be opened
+				blocks.openFailed (new SSHHelperException ("Received an IOException when opening file '" + filename + "'. It says,\n" + ioE.getMessage ()));
+				return;
+			}
+
+			long index;
+			while ((index = blocks.claim ()) >= 0) {
+				byte[] data = new byte[BLOCK_SIZE];
+				int filled = 0;
+				while (filled < BLOCK_SIZE) {
+					int readResult = client.read (handle, index * BLOCK_SIZE + filled, data, filled, BLOCK_SIZE - filled);
+					if (readResult <= 0) {
+						break;
+					}
+					filled += readResult;
+				}
+				blocks.complete (index, filled < BLOCK_SIZE ? Arrays.copyOf (data, filled) : data);
+			}
+		} catch (IOException ioE) {
+			blocks.fail (new SSHHelperException ("Received an IOException when reading file '" + filename + "'. It says,\n" + ioE.getMessage ()));
+		} catch (InterruptedException ex) {
+			blocks.fail (new SSHHelperException (ex));
+		} catch (Throwable t) {
+			// A block claimed here would never be completed, and the writer
+			// would wait for it forever
+			blocks.fail (new SSHHelperException ("Failed reading file '" + filename + "'", t));
+			if (t instanceof Error) {
+				throw (Error) t;
+			}
+		} finally {
+			if (handle != null) {
+				try {
+					client.closeFile (handle);
+				} catch (IOException ioE) {
+				}
+			}
+			if (client != null) {
+				client.close ();
+			}
+		}
+	}
+
+	/**
+	 * Hands out block indexes to the reading threads and the read blocks to
+	 * the writing thread in order. Readers may run only a limited number of
+	 * blocks ahead of the writer, which bounds the memory used
+	 */
+	private static class Blocks {
+
+		private final int readers;
+		private final int ahead;
+		private final Map<Long, byte[]> ready = new HashMap<> ();
+		private long nextToClaim = 0;
+		private long nextToWrite = 0;
+		private long end = Long.MAX_VALUE;
+		private SSHHelperException failure = null;
+		private boolean aborted = false;
+		private int openFailures = 0;
+
+		Blocks (int readers, int ahead) {
+			this.readers = readers;
+			this.ahead = ahead;
+		}
+
+		/**
+		 * @return the index of the next block to read, or -1 if there is
+		 * nothing more to read
+		 */
+		synchronized long claim () throws InterruptedException {
+			while (!aborted && failure == null && nextToClaim < end && nextToClaim - nextToWrite >= ahead) {
+				wait ();
+			}
+			if (aborted || failure != null || nextToClaim >= end) {
+				return -1;
+			}
+			return nextToClaim++;
+		}
+
+		/**
+		 * A block shorter than {@link #BLOCK_SIZE} is the last one
+		 */
+		synchronized void complete (long index, byte[] data) {
+			if (index < end) {
+				ready.put (index, data);
+			}
+			if (data.length < BLOCK_SIZE && index + 1 < end) {
+				end = index + 1;
+			}
+			notifyAll ();
+		}
+
+		synchronized void openFailed (SSHHelperException ex) {
+			openFailures++;
+			if (openFailures >= readers) {
+				fail (ex);
+			}
+		}
+
+		synchronized void fail (SSHHelperException ex) {
+			if (failure == null) {
+				failure = ex;
+			}
+			notifyAll ();
+		}
+
+		synchronized void abort () {
+			aborted = true;
+			notifyAll ();
+		}
+
+		/**
+		 * @return the next block in file order, or null after the last one
+		 */
+		synchronized byte[] next () throws InterruptedException, SSHHelperException {
+			while (true) {
+				if (failure != null) {
+					throw failure;
+				}
+				if (nextToWrite >= end) {
+					return null;
+				}
+				byte[] data = ready.remove (nextToWrite);
+				if (data != null) {
+					nextToWrite++;
+					notifyAll ();
+					return data;
+				}
+				wait ();
+			}
+		}
+	}
+}
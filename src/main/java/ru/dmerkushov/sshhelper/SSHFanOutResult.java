@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import ru.dmerkushov.oshelper.OSHelper.ProcessReturn;
+
+/**
+ * Result of running a command on one host with {@link SSHFanOutRunner},
+ * with the time spent in each phase
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SSHFanOutResult {
+
+	private final SSHHost host;
+	private final ProcessReturn processReturn;
+	private final SSHHelperException failure;
+	private final long connectNanos;
+	private final long authNanos;
+	private final long execNanos;
+	private final long drainNanos;
+
+	SSHFanOutResult (SSHHost host, ProcessReturn processReturn, SSHHelperException failure, long connectNanos, long authNanos, long execNanos, long drainNanos) {
+		this.host = host;
+		this.processReturn = processReturn;
+		this.failure = failure;
+		this.connectNanos = connectNanos;
+		this.authNanos = authNanos;
+		this.execNanos = execNanos;
+		this.drainNanos = drainNanos;
+	}
+
+	public SSHHost getHost () {
+		return host;
+	}
+
+	/**
+	 * @return the command result, or null if the host failed
+	 */
+	public ProcessReturn getProcessReturn () {
+		return processReturn;
+	}
+
+	/**
+	 * @return the failure, or null if the command has run
+	 */
+	public SSHHelperException getFailure () {
+		return failure;
+	}
+
+	public boolean isSuccessful () {
+		return failure == null;
+	}
+
+	/**
+	 * @return time spent establishing the TCP connection
+	 */
+	public long getConnectNanos () {
+		return connectNanos;
+	}
+
+	/**
+	 * @return time spent in key exchange and authentication
+	 */
+	public long getAuthNanos () {
+		return authNanos;
+	}
+
+	/**
+	 * @return time spent opening the exec channel and starting the command
+	 */
+	public long getExecNanos () {
+		return execNanos;
+	}
+
+	/**
+	 * @return time spent waiting for the command output and exit status
+	 */
+	public long getDrainNanos () {
+		return drainNanos;
+	}
+
+	@Override
+	public String toString () {
+		return host + (failure == null ? " exit " + processReturn.exitCode : " failed: " + failure.getMessage ());
+	}
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import com.jcraft.jsch.SocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import ru.dmerkushov.oshelper.OSHelper.ProcessReturn;
+
+/**
+ * Runs a command on many hosts at once with a bounded number of hosts in
+ * progress, and passes each host's result to an {@link SSHFanOutListener} as
+ * soon as it is done.
+ *
+ * JSch I/O is blocking, so each host in progress occupies a thread. On Java
+ * runtimes that have virtual threads the hosts are run in virtual threads;
+ * otherwise a fixed pool of <code>parallelism</code> threads is used. Note
+ * that JSch additionally starts a platform thread for every connected
+ * session.
+ *
+ * Progress counters and the time spent in every phase, summed over all the
+ * hosts, may be read while {@link #run(java.util.List, java.lang.String, ru.dmerkushov.sshhelper.SSHFanOutListener)}
+ * is in progress. A runner should not be used for two runs at once.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SSHFanOutRunner {
+
+	public static final int DEFAULT_PARALLELISM = 64;
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 30000;
+
+	private final int parallelism;
+	private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+	private long commandTimeoutMillis = 0;
+	private String charset = Charset.defaultCharset ().name ();
+	private boolean useVirtualThreads = true;
+	private volatile boolean usingVirtualThreads = false;
+
+	private final AtomicInteger submitted = new AtomicInteger ();
+	private final AtomicInteger running = new AtomicInteger ();
+	private final AtomicInteger succeeded = new AtomicInteger ();
+	private final AtomicInteger failed = new AtomicInteger ();
+	private final AtomicLong totalConnectNanos = new AtomicLong ();
+	private final AtomicLong totalAuthNanos = new AtomicLong ();
+	private final AtomicLong totalExecNanos = new AtomicLong ();
+	private final AtomicLong totalDrainNanos = new AtomicLong ();
+
+	public SSHFanOutRunner () {
+		this (DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * @param parallelism maximum number of hosts in progress at once
+	 */
+	public SSHFanOutRunner (int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException ("parallelism must be greater than 0: " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	public int getParallelism () {
+		return parallelism;
+	}
+
+	public int getConnectTimeoutMillis () {
+		return connectTimeoutMillis;
+	}
+
+	/**
+	 * @param connectTimeoutMillis timeout of TCP connect and of the SSH
+	 * handshake, 0 for none
+	 */
+	public void setConnectTimeoutMillis (int connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public long getCommandTimeoutMillis () {
+		return commandTimeoutMillis;
+	}
+
+	/**
+	 * @param commandTimeoutMillis how long to wait for the command to finish
+	 * on a host, 0 for no limit
+	 */
+	public void setCommandTimeoutMillis (long commandTimeoutMillis) {
+		this.commandTimeoutMillis = commandTimeoutMillis;
+	}
+
+	public String getCharset () {
+		return charset;
+	}
+
+	/**
+	 * @param charset charset of the command output
+	 */
+	public void setCharset (String charset) {
+		this.charset = charset;
+	}
+
+	/**
+	 * @param useVirtualThreads false to always use a fixed thread pool
+	 */
+	public void setUseVirtualThreads (boolean useVirtualThreads) {
+		this.useVirtualThreads = useVirtualThreads;
+	}
+
+	/**
+	 * @return true if the last run has used virtual threads
+	 */
+	public boolean isUsingVirtualThreads () {
+		return usingVirtualThreads;
+	}
+
+	/**
+	 * Run a command on all the hosts and wait until every host is done. Each
+	 * host gets its own session, which is disconnected afterwards. A failure
+	 * on one host does not stop the others; it is reported in the host's
+	 * result
+	 *
+	 * @param hosts
+	 * @param command
+	 * @param listener receives each host's result as soon as it is done
+	 * @throws SSHHelperException if the charset is not supported or the run
+	 * has been interrupted
+	 */
+	public void run (List<SSHHost> hosts, final String command, final SSHFanOutListener listener) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (hosts.size (), command, listener);
+
+		if (!Charset.isSupported (charset)) {
+			throw new SSHHelperException ("Charset " + charset + " is not supported");
+		}
+
+		submitted.set (0);
+		running.set (0);
+		succeeded.set (0);
+		failed.set (0);
+		totalConnectNanos.set (0);
+		totalAuthNanos.set (0);
+		totalExecNanos.set (0);
+		totalDrainNanos.set (0);
+
+		ExecutorService executor = newExecutor ();
+		final Semaphore slots = new Semaphore (parallelism);
+		final CountDownLatch done = new CountDownLatch (hosts.size ());
+
+		try {
+			for (final SSHHost host : hosts) {
+				slots.acquire ();
+				submitted.incrementAndGet ();
+				executor.execute (new Runnable () {
+					@Override
+					public void run () {
+						try {
+							publish (listener, runOnHost (host, command));
+						} finally {
+							slots.release ();
+							done.countDown ();
+						}
+					}
+				});
+			}
+			done.await ();
+		} catch (InterruptedException ex) {
+			executor.shutdownNow ();
+			Thread.currentThread ().interrupt ();
+			throw new SSHHelperException (ex);
+		} finally {
+			executor.shutdown ();
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * @return number of hosts started so far in the current run
+	 */
+	public int getSubmittedCount () {
+		return submitted.get ();
+	}
+
+	/**
+	 * @return number of hosts in progress
+	 */
+	public int getRunningCount () {
+		return running.get ();
+	}
+
+	/**
+	 * @return number of hosts where the command has run
+	 */
+	public int getSucceededCount () {
+		return succeeded.get ();
+	}
+
+	/**
+	 * @return number of hosts that have failed
+	 */
+	public int getFailedCount () {
+		return failed.get ();
+	}
+
+	/**
+	 * @return total time spent establishing TCP connections
+	 */
+	public long getTotalConnectNanos () {
+		return totalConnectNanos.get ();
+	}
+
+	/**
+	 * @return total time spent in key exchange and authentication
+	 */
+	public long getTotalAuthNanos () {
+		return totalAuthNanos.get ();
+	}
+
+	/**
+	 * @return total time spent opening exec channels and starting the command
+	 */
+	public long getTotalExecNanos () {
+		return totalExecNanos.get ();
+	}
+
+	/**
+	 * @return total time spent waiting for command output and exit status
+	 */
+	public long getTotalDrainNanos () {
+		return totalDrainNanos.get ();
+	}
+
+	private SSHFanOutResult runOnHost (SSHHost host, String command) {
+		running.incrementAndGet ();
+
+		long connectNanos = 0;
+		long authNanos = 0;
+		long execNanos = 0;
+		long drainNanos = 0;
+		ProcessReturn processReturn = null;
+		SSHHelperException failure = null;
+		Session session = null;
+
+		long phaseStart = System.nanoTime ();
+		TimingSocketFactory socketFactory = new TimingSocketFactory (connectTimeoutMillis);
+		try {
+			session = SSHHelper.newSession (host.getHostname (), host.getPort (), host.getUsername (), host.getPassword (), host.getKnownHostsFilePath (), host.getIdentityFilePath ());
+			session.setSocketFactory (socketFactory);
+			session.connect (connectTimeoutMillis);
+			long now = System.nanoTime ();
+			connectNanos = socketFactory.connectedAt - phaseStart;
+			authNanos = now - socketFactory.connectedAt;
+			phaseStart = now;
+
+			StringBuilder stdoutBuilder = new StringBuilder ();
+			StringBuilder stderrBuilder = new StringBuilder ();
+			CharsetDecodingOutputStream stdoutDecoder = new CharsetDecodingOutputStream (stdoutBuilder, Charset.forName (charset));
+			CharsetDecodingOutputStream stderrDecoder = new CharsetDecodingOutputStream (stderrBuilder, Charset.forName (charset));
+
+			ExecChannel execChannel = ExecChannel.start (session, command, stdoutDecoder, stderrDecoder, null);
+			now = System.nanoTime ();
+			execNanos = now - phaseStart;
+			phaseStart = now;
+
+			processReturn = new ProcessReturn ();
+			try {
+				processReturn.exitCode = execChannel.await (commandTimeoutMillis);
+			} finally {
+				drainNanos = System.nanoTime () - phaseStart;
+				stdoutDecoder.close ();
+				stderrDecoder.close ();
+			}
+			processReturn.stdout = stdoutBuilder.toString ();
+			processReturn.stderr = stderrBuilder.toString ();
+		} catch (SSHHelperException ex) {
+			failure = ex;
+		} catch (JSchException | IOException | TimeoutException ex) {
+			failure = new SSHHelperException ("Command failed on " + host + ": " + ex.getMessage (), ex);
+		} catch (InterruptedException ex) {
+			Thread.currentThread ().interrupt ();
+			failure = new SSHHelperException ("Interrupted on " + host, ex);
+		} finally {
+			if (session != null) {
+				session.disconnect ();
+			}
+			running.decrementAndGet ();
+		}
+
+		if (failure != null) {
+			processReturn = null;
+			long now = System.nanoTime ();
+			if (connectNanos == 0 && authNanos == 0) {
+				// Failed while connecting. Split the time if the TCP connection was made
+				if (socketFactory.connectedAt != 0) {
+					connectNanos = socketFactory.connectedAt - phaseStart;
+					authNanos = now - socketFactory.connectedAt;
+				} else {
+					connectNanos = now - phaseStart;
+				}
+			} else if (execNanos == 0) {
+				execNanos = now - phaseStart;
+			}
+			failed.incrementAndGet ();
+		} else {
+			succeeded.incrementAndGet ();
+		}
+		totalConnectNanos.addAndGet (connectNanos);
+		totalAuthNanos.addAndGet (authNanos);
+		totalExecNanos.addAndGet (execNanos);
+		totalDrainNanos.addAndGet (drainNanos);
+
+		return new SSHFanOutResult (host, processReturn, failure, connectNanos, authNanos, execNanos, drainNanos);
+	}
+
+	private static void publish (SSHFanOutListener listener, SSHFanOutResult result) {
+		try {
+			listener.hostDone (result);
+		} catch (RuntimeException ex) {
+			SSHHelper.getLoggerWrapper ().warning ("Fan-out listener has thrown an exception for " + result.getHost () + ": " + ex);
+		}
+	}
+
+	private ExecutorService newExecutor () {
+		usingVirtualThreads = false;
+		if (useVirtualThreads) {
+			try {
+				Method method = Executors.class.getMethod ("newVirtualThreadPerTaskExecutor");
+				ExecutorService executor = (ExecutorService) method.invoke (null);
+				usingVirtualThreads = true;
+				return executor;
+			} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException ex) {
+				SSHHelper.getLoggerWrapper ().finer ("Virtual threads are not available: " + ex);
+			}
+		}
+
+		final AtomicInteger threadNumber = new AtomicInteger ();
+		return Executors.newFixedThreadPool (parallelism, new ThreadFactory () {
+			@Override
+			public Thread newThread (Runnable runnable) {
+				Thread thread = new Thread (runnable, "SSHFanOutRunner-" + threadNumber.incrementAndGet ());
+				thread.setDaemon (true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Socket factory that notes when the TCP connection has been established,
+	 * to tell the connect time from the handshake time
+	 */
+	private static class TimingSocketFactory implements SocketFactory {
+
+		private final int connectTimeoutMillis;
+		volatile long connectedAt = 0;
+
+		TimingSocketFactory (int connectTimeoutMillis) {
+			this.connectTimeoutMillis = connectTimeoutMillis;
+		}
+
+		@Override
+		public Socket createSocket (String host, int port) throws IOException {
+			Socket socket = new Socket ();
+			socket.connect (new InetSocketAddress (host, port), connectTimeoutMillis);
+			connectedAt = System.nanoTime ();
+			return socket;
+		}
+
+		@Override
+		public InputStream getInputStream (Socket socket) throws IOException {
+			return socket.getInputStream ();
+		}
+
+		@Override
+		public OutputStream getOutputStream (Socket socket) throws IOException {
+			return socket.getOutputStream ();
+		}
+	}
+}
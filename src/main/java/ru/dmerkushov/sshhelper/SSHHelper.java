@@ -9,11 +9,11 @@ import ch.ethz.ssh2.SFTPv3Client;
 import ch.ethz.ssh2.SFTPv3FileAttributes;
 import ch.ethz.ssh2.SFTPv3FileHandle;
 import ch.ethz.ssh2.StreamGobbler;
-import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.ChannelSftp;
 import com.jcraft.jsch.ChannelSftpExtDM;
 import com.jcraft.jsch.ConfigRepository;
+import com.jcraft.jsch.Identity;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
@@ -26,8 +26,18 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import ru.dmerkushov.loghelper.LoggerWrapper;
 import ru.dmerkushov.oshelper.OSHelper.ProcessReturn;
@@ -48,10 +58,73 @@ public class SSHHelper {
 		return loggerWrapper;
 	}
 
-	static JSch jsch = null;
+	static volatile JSch jsch = null;
+	// Guarded by SSHHelper.class, like newSession (): path and modification
+	// time of the loaded known hosts file and of every identity file added
+	private static String knownHostsLoaded = null;
+	private static long knownHostsModified = 0;
+	private static final Map<String, Long> identitiesAdded = new HashMap<> ();
+
+	static volatile SSHSessionPool sessionPool = null;
+	static volatile SFTPBlockCache blockCache = null;
+
+	/**
+	 * Default maximum number of exec channels open at once in one session.
+	 * Matches the OpenSSH <code>MaxSessions</code> default
+	 */
+	public static final int DEFAULT_MAX_EXEC_CHANNELS = 10;
+
+	/**
+	 * Make {@link #connect(java.lang.String, int, java.lang.String, java.lang.String, java.lang.String, java.lang.String)}
+	 * borrow sessions from a pool and {@link #disconnect(com.jcraft.jsch.Session)}
+	 * give them back instead of disconnecting
+	 *
+	 * @param pool the pool to use, or null to connect and disconnect directly
+	 */
+	public static void setSessionPool (SSHSessionPool pool) {
+		getLoggerWrapper ().entering (pool);
+
+		sessionPool = pool;
+
+		getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * Get the session pool used by <code>connect</code> and
+	 * <code>disconnect</code>
+	 *
+	 * @return the pool, or null if sessions are not pooled
+	 */
+	public static SSHSessionPool getSessionPool () {
+		return sessionPool;
+	}
+
+	/**
+	 * Make {@link #readBinaryFileRangeFromSFTP(com.jcraft.jsch.ChannelSftpExtDM, java.lang.String, long, int)}
+	 * read through a block cache
+	 *
+	 * @param cache the cache to use, or null to read directly
+	 */
+	public static void setBlockCache (SFTPBlockCache cache) {
+		getLoggerWrapper ().entering (cache);
+
+		blockCache = cache;
+
+		getLoggerWrapper ().exiting ();
+	}
 
 	/**
-	 * Connect to an SSH host
+	 * Get the block cache used by <code>readBinaryFileRangeFromSFTP</code>
+	 *
+	 * @return the cache, or null if reads are not cached
+	 */
+	public static SFTPBlockCache getBlockCache () {
+		return blockCache;
+	}
+
+	/**
+	 * Connect to an SSH host. If a session pool is set, the session is
+	 * borrowed from the pool
 	 *
 	 * @param hostname
 	 * @param port
@@ -61,12 +134,63 @@ public class SSHHelper {
 	 * @param identityFilePath
 	 * @return
 	 * @throws SSHHelperException
+	 * @see #setSessionPool(ru.dmerkushov.sshhelper.SSHSessionPool)
 	 */
 	public static Session connect (String hostname, int port, String username, String password, String knownHostsFilePath, String identityFilePath) throws SSHHelperException {
 		getLoggerWrapper ().entering (hostname, port, username, password, knownHostsFilePath, identityFilePath);
 
 		Session session;
 
+		SSHSessionPool pool = sessionPool;
+		if (pool != null) {
+			session = pool.borrow (hostname, port, username, password, knownHostsFilePath, identityFilePath);
+		} else {
+			session = openSession (hostname, port, username, password, knownHostsFilePath, identityFilePath);
+		}
+
+		getLoggerWrapper ().exiting (session);
+		return session;
+	}
+
+	/**
+	 * Open a new SSH session, bypassing the session pool
+	 *
+	 * @param hostname
+	 * @param port
+	 * @param username
+	 * @param password
+	 * @param knownHostsFilePath
+	 * @param identityFilePath
+	 * @return
+	 * @throws SSHHelperException
+	 */
+	static Session openSession (String hostname, int port, String username, String password, String knownHostsFilePath, String identityFilePath) throws SSHHelperException {
+		Session session = newSession (hostname, port, username, password, knownHostsFilePath, identityFilePath);
+
+		try {
+			session.connect ();
+		} catch (JSchException ex) {
+			throw new SSHHelperException (ex);
+		}
+
+		return session;
+	}
+
+	/**
+	 * Create a new SSH session without connecting it
+	 *
+	 * @param hostname
+	 * @param port
+	 * @param username
+	 * @param password
+	 * @param knownHostsFilePath
+	 * @param identityFilePath
+	 * @return
+	 * @throws SSHHelperException
+	 */
+	static synchronized Session newSession (String hostname, int port, String username, String password, String knownHostsFilePath, String identityFilePath) throws SSHHelperException {
+		Session session;
+
 		try {
 
 			if (jsch == null) {
@@ -74,24 +198,50 @@ public class SSHHelper {
 			}
 			session = jsch.getSession (username, hostname, port);
 			session.setUserInfo (new SSHUserInfo (password));
+			// Reloading the known hosts file or adding the same identity again
+			// for every session gets expensive when connecting to many hosts,
+			// so they are loaded again only when the file has been modified
 			if (knownHostsFilePath != null) {
-				jsch.setKnownHosts (knownHostsFilePath);
+				long modified = new File (knownHostsFilePath).lastModified ();
+				if (!knownHostsFilePath.equals (knownHostsLoaded) || modified != knownHostsModified) {
+					jsch.setKnownHosts (knownHostsFilePath);
+					knownHostsLoaded = knownHostsFilePath;
+					knownHostsModified = modified;
+				}
 			}
 			if (identityFilePath != null) {
-				jsch.addIdentity (identityFilePath);
+				long modified = new File (identityFilePath).lastModified ();
+				Long added = identitiesAdded.get (identityFilePath);
+				if (added == null || added != modified) {
+					if (added != null) {
+						removeIdentity (identityFilePath);
+					}
+					jsch.addIdentity (identityFilePath);
+					identitiesAdded.put (identityFilePath, modified);
+				}
 			}
-			session.connect ();
 
 		} catch (JSchException ex) {
 			throw new SSHHelperException (ex);
 		}
 
-		getLoggerWrapper ().exiting (session);
 		return session;
 	}
 
 	/**
-	 * Disconnect from an SSH host
+	 * Remove an identity added from a file that has been replaced since
+	 */
+	private static void removeIdentity (String identityFilePath) throws JSchException {
+		for (Object identity : jsch.getIdentityRepository ().getIdentities ()) {
+			if (identityFilePath.equals (((Identity) identity).getName ())) {
+				jsch.removeIdentity ((Identity) identity);
+			}
+		}
+	}
+
+	/**
+	 * Disconnect from an SSH host. A session borrowed from the session pool is
+	 * given back to the pool instead
 	 *
 	 * @param session
 	 * @throws SSHHelperException
@@ -99,7 +249,10 @@ public class SSHHelper {
 	public static void disconnect (Session session) throws SSHHelperException {
 		getLoggerWrapper ().entering (session);
 
-		if (!session.isConnected ()) {
+		SSHSessionPool pool = sessionPool;
+		if (pool != null && pool.isBorrowed (session)) {
+			pool.release (session);
+		} else if (!session.isConnected ()) {
 			session.disconnect ();
 		}
 
@@ -143,7 +296,11 @@ public class SSHHelper {
 			}
 		}
 
-		((Channel) channelSftp).run ();
+		try {
+			channelSftp.connect ();
+		} catch (JSchException ex) {
+			throw new SSHHelperException (ex);
+		}
 
 		try {
 			getLoggerWrapper ().finest ("Server SFTP version: " + channelSftp.getServerVersion ());
@@ -191,7 +348,8 @@ public class SSHHelper {
 	}
 
 	/**
-	 * Run a command in a session. After running, the session will be closed
+	 * Run a command in a session. After running, the session will be closed.
+	 * The output is decoded using the platform default charset
 	 *
 	 * @param session
 	 * @param command
@@ -201,45 +359,43 @@ public class SSHHelper {
 	public static ProcessReturn executeCommand (Session session, String command) throws SSHHelperException {
 		getLoggerWrapper ().entering (session, command);
 
-		ProcessReturn processReturn = new ProcessReturn ();
+		ProcessReturn processReturn = executeCommand (session, command, Charset.defaultCharset ().name ());
 
-		try {
+		getLoggerWrapper ().exiting (processReturn);
+		return processReturn;
+	}
+
+	/**
+	 * Run a command in a session. After running, the session will be closed
+	 *
+	 * @param session
+	 * @param command
+	 * @param charset charset of the command output
+	 * @return
+	 * @throws SSHHelperException
+	 */
+	public static ProcessReturn executeCommand (Session session, String command, String charset) throws SSHHelperException {
+		getLoggerWrapper ().entering (session, command, charset);
 
-			ChannelExec channelExec = (ChannelExec) session.openChannel ("exec");
-			channelExec.setCommand (command);
+		if (!Charset.isSupported (charset)) {
+			throw new SSHHelperException ("Charset " + charset + " is not supported");
+		}
 
-			InputStream stdoutStream = channelExec.getInputStream ();
-			InputStream stderrStream = channelExec.getErrStream ();
+		ProcessReturn processReturn = new ProcessReturn ();
 
-			channelExec.connect ();
+		try {
 
 			StringBuilder stdoutBuilder = new StringBuilder ();
 			StringBuilder stderrBuilder = new StringBuilder ();
+			CharsetDecodingOutputStream stdoutDecoder = new CharsetDecodingOutputStream (stdoutBuilder, Charset.forName (charset));
+			CharsetDecodingOutputStream stderrDecoder = new CharsetDecodingOutputStream (stderrBuilder, Charset.forName (charset));
 
-			byte[] readBuffer = new byte[1024];
-			boolean channelOpen = !channelExec.isClosed ();
-			while (channelOpen) {
-				while (stdoutStream.available () > 0) {
-					int readBytes = stdoutStream.read (readBuffer, 0, readBuffer.length);
-					if (readBytes < 0) {
-						break;
-					}
-					stdoutBuilder.append (new String (Arrays.copyOf (readBuffer, readBytes)));
-				}
-				while (stderrStream.available () > 0) {
-					int readBytes = stderrStream.read (readBuffer, 0, readBuffer.length);
-					if (readBytes < 0) {
-						break;
-					}
-					stderrBuilder.append (new String (Arrays.copyOf (readBuffer, readBytes)));
-				}
-				Thread.sleep (300);
-				channelOpen = !channelExec.isClosed ();
+			try {
+				processReturn.exitCode = runChannelExec (session, command, stdoutDecoder, stderrDecoder);
+			} finally {
+				stdoutDecoder.close ();
+				stderrDecoder.close ();
 			}
-
-			channelExec.disconnect ();
-
-			processReturn.exitCode = channelExec.getExitStatus ();
 			processReturn.stdout = stdoutBuilder.toString ();
 			processReturn.stderr = stderrBuilder.toString ();
 			disconnect (session);
@@ -252,6 +408,228 @@ public class SSHHelper {
 		return processReturn;
 	}
 
+	/**
+	 * Run a command in a session, passing its stdout and stderr to the given
+	 * streams chunk by chunk as they arrive. Nothing is accumulated, so memory
+	 * use does not depend on the amount of output. The session is left open.
+	 *
+	 * The streams are written from the JSch session thread. While a write is
+	 * in progress JSch does not read further packets nor replenish the channel
+	 * window, so a slow consumer holds the server back instead of letting
+	 * output pile up in memory. Note that this also stalls the other channels
+	 * of the same session. The streams are not closed.
+	 *
+	 * @param session
+	 * @param command
+	 * @param stdout receives the stdout of the command. May be null to discard it
+	 * @param stderr receives the stderr of the command. May be null to discard it
+	 * @return exit status of the command, or -1 if the server has not sent it
+	 * @throws SSHHelperException
+	 */
+	public static int streamCommand (Session session, String command, OutputStream stdout, OutputStream stderr) throws SSHHelperException {
+		getLoggerWrapper ().entering (session, command, stdout, stderr);
+
+		int exitCode;
+
+		try {
+			exitCode = runChannelExec (session, command, stdout, stderr);
+		} catch (JSchException | IOException | InterruptedException ex) {
+			throw new SSHHelperException (ex);
+		}
+
+		getLoggerWrapper ().exiting (exitCode);
+		return exitCode;
+	}
+
+	/**
+	 * Run a command in a session, passing its stdout and stderr to the given
+	 * listeners line by line as they arrive. The session is left open.
+	 *
+	 * @param session
+	 * @param command
+	 * @param stdout receives the stdout lines of the command
+	 * @param stderr receives the stderr lines of the command
+	 * @param charset charset of the command output
+	 * @return exit status of the command, or -1 if the server has not sent it
+	 * @throws SSHHelperException
+	 * @see #streamCommand(com.jcraft.jsch.Session, java.lang.String, java.io.OutputStream, java.io.OutputStream)
+	 */
+	public static int streamCommand (Session session, String command, SSHLineListener stdout, SSHLineListener stderr, String charset) throws SSHHelperException {
+		getLoggerWrapper ().entering (session, command, stdout, stderr, charset);
+
+		if (!Charset.isSupported (charset)) {
+			throw new SSHHelperException ("Charset " + charset + " is not supported");
+		}
+
+		SSHLineOutputStream stdoutLines = new SSHLineOutputStream (stdout, charset);
+		SSHLineOutputStream stderrLines = new SSHLineOutputStream (stderr, charset);
+
+		int exitCode = streamCommand (session, command, stdoutLines, stderrLines);
+
+		try {
+			stdoutLines.close ();
+			stderrLines.close ();
+		} catch (IOException ex) {
+			throw new SSHHelperException (ex);
+		}
+
+		getLoggerWrapper ().exiting (exitCode);
+		return exitCode;
+	}
+
+	/**
+	 * Run several commands in one session at the same time, each in its own
+	 * exec channel, and wait for all of them. The output is decoded using the
+	 * platform default charset. The session is left open
+	 *
+	 * @param session
+	 * @param commands
+	 * @return the results, in the order of <code>commands</code>
+	 * @throws SSHHelperException
+	 * @see #executeCommands(com.jcraft.jsch.Session, java.util.List, java.lang.String, int)
+	 */
+	public static List<ProcessReturn> executeCommands (Session session, List<String> commands) throws SSHHelperException {
+		return executeCommands (session, commands, Charset.defaultCharset ().name (), DEFAULT_MAX_EXEC_CHANNELS);
+	}
+
+	/**
+	 * Run several commands in one session at the same time, each in its own
+	 * exec channel, and wait for all of them. No more than
+	 * {@link #DEFAULT_MAX_EXEC_CHANNELS} channels are open at once. The
+	 * session is left open
+	 *
+	 * @param session
+	 * @param commands
+	 * @param charset charset of the command output
+	 * @return the results, in the order of <code>commands</code>
+	 * @throws SSHHelperException
+	 * @see #executeCommands(com.jcraft.jsch.Session, java.util.List, java.lang.String, int)
+	 */
+	public static List<ProcessReturn> executeCommands (Session session, List<String> commands, String charset) throws SSHHelperException {
+		return executeCommands (session, commands, charset, DEFAULT_MAX_EXEC_CHANNELS);
+	}
+
+	/**
+	 * Run several commands in one session at the same time, each in its own
+	 * exec channel, and wait for all of them. The session is left open.
+	 *
+	 * The output of all the channels is drained by the JSch session thread as
+	 * it arrives, so the total time is close to that of the slowest command
+	 * rather than the sum. If the server refuses to open another channel
+	 * (OpenSSH limits them with <code>MaxSessions</code>, 10 by default), the
+	 * limit is lowered to the number of channels open at that moment and the
+	 * command is started again as soon as another one finishes.
+	 *
+	 * @param session
+	 * @param commands
+	 * @param charset charset of the command output
+	 * @param maxChannels maximum number of exec channels open at once
+	 * @return the results, in the order of <code>commands</code>
+	 * @throws SSHHelperException
+	 */
+	public static List<ProcessReturn> executeCommands (Session session, List<String> commands, String charset, int maxChannels) throws SSHHelperException {
+		getLoggerWrapper ().entering (session, commands, charset, maxChannels);
+
+		if (!Charset.isSupported (charset)) {
+			throw new SSHHelperException ("Charset " + charset + " is not supported");
+		}
+		if (maxChannels <= 0) {
+			throw new SSHHelperException ("maxChannels must be greater than 0: " + maxChannels);
+		}
+
+		int commandCount = commands.size ();
+		ExecChannel[] execChannels = new ExecChannel[commandCount];
+		StringBuilder[] stdoutBuilders = new StringBuilder[commandCount];
+		StringBuilder[] stderrBuilders = new StringBuilder[commandCount];
+		CharsetDecodingOutputStream[] stdoutDecoders = new CharsetDecodingOutputStream[commandCount];
+		CharsetDecodingOutputStream[] stderrDecoders = new CharsetDecodingOutputStream[commandCount];
+
+		final int[] running = new int[1];
+		final Object runningLock = new Object ();
+		Runnable finishListener = new Runnable () {
+			@Override
+			public void run () {
+				synchronized (runningLock) {
+					running[0]--;
+					runningLock.notifyAll ();
+				}
+			}
+		};
+
+		List<ProcessReturn> result = new ArrayList<> (commandCount);
+		int limit = maxChannels;
+		int awaited = 0;
+
+		try {
+			for (int i = 0; i < commandCount; i++) {
+				stdoutBuilders[i] = new StringBuilder ();
+				stderrBuilders[i] = new StringBuilder ();
+				stdoutDecoders[i] = new CharsetDecodingOutputStream (stdoutBuilders[i], Charset.forName (charset));
+				stderrDecoders[i] = new CharsetDecodingOutputStream (stderrBuilders[i], Charset.forName (charset));
+
+				while (execChannels[i] == null) {
+					synchronized (runningLock) {
+						while (running[0] >= limit) {
+							runningLock.wait ();
+						}
+						running[0]++;
+					}
+					try {
+						execChannels[i] = ExecChannel.start (session, commands.get (i), stdoutDecoders[i], stderrDecoders[i], finishListener);
+					} catch (JSchException ex) {
+						synchronized (runningLock) {
+							running[0]--;
+							if (running[0] == 0 || !session.isConnected ()) {
+								throw ex;
+							}
+							limit = running[0];
+						}
+						getLoggerWrapper ().fine ("Could not open exec channel number " + (limit + 1) + ", limiting to " + limit + " channels: " + ex.getMessage ());
+					}
+				}
+			}
+
+			for (; awaited < commandCount; awaited++) {
+				ProcessReturn processReturn = new ProcessReturn ();
+				processReturn.exitCode = execChannels[awaited].await ();
+				stdoutDecoders[awaited].close ();
+				stderrDecoders[awaited].close ();
+				processReturn.stdout = stdoutBuilders[awaited].toString ();
+				processReturn.stderr = stderrBuilders[awaited].toString ();
+				result.add (processReturn);
+			}
+		} catch (JSchException | IOException | InterruptedException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			for (int i = awaited; i < commandCount; i++) {
+				if (execChannels[i] != null) {
+					execChannels[i].abort ();
+				}
+			}
+		}
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Run a command in an exec channel, writing its stdout and stderr to the
+	 * given streams as the data arrives. Returns once the server has closed
+	 * the channel, which happens right after it has sent the exit status
+	 *
+	 * @param session
+	 * @param command
+	 * @param stdout
+	 * @param stderr
+	 * @return exit status of the command, or -1 if the server has not sent it
+	 * @throws JSchException
+	 * @throws IOException if writing to stdout or stderr failed
+	 * @throws InterruptedException
+	 */
+	static int runChannelExec (Session session, String command, OutputStream stdout, OutputStream stderr) throws JSchException, IOException, InterruptedException {
+		return ExecChannel.start (session, command, stdout, stderr, null).await ();
+	}
+
 	/**
 	 * Start a connection without verifying the host
 	 *
@@ -581,7 +959,9 @@ public class SSHHelper {
 	}
 
 	/**
-	 * Copies a file from SFTP to local filesystem byte by byte
+	 * Copies a file from SFTP to local filesystem. The file is read in blocks
+	 * that are written locally as they arrive, so any size of file is copied
+	 * in constant memory
 	 *
 	 * @param sftpClient
 	 * @param remoteFilename
@@ -589,33 +969,84 @@ public class SSHHelper {
 	 * @return
 	 * @throws SSHHelperException
 	 * @deprecated
+	 * @see #copyFileFromSFTPToLocal(ch.ethz.ssh2.Connection, java.lang.String, java.lang.String, java.lang.String, int)
 	 */
 	public static File copyFileFromSFTPToLocal (SFTPv3Client sftpClient, String remoteFilename, String localFilename) throws SSHHelperException {
 		Object[] methodParams = {sftpClient, remoteFilename, localFilename};
 		getLoggerWrapper ().entering (methodParams);
 
-		File result = null;
-
-		byte[] fileContents = readBinaryFileFromSFTP (sftpClient, remoteFilename);
-
-		result = new File (localFilename);
+		File result = new File (localFilename);
 
-		FileOutputStream resultFos;
+		SFTPv3FileHandle fHandle;
 
 		try {
-			resultFos = new FileOutputStream (result);
-		} catch (FileNotFoundException fnfE) {
-			throw new SSHHelperException ("Received a FileNotFoundException when trying to create output file '" + localFilename + "'. It says,\n" + fnfE.getMessage ());
+			fHandle = sftpClient.openFileRO (remoteFilename);
+		} catch (IOException ioE) {
+			throw new SSHHelperException ("Received an IOException when opening file '" + remoteFilename + "'. It says,\n" + ioE.getMessage ());
 		}
 
-		try {
-			resultFos.write (fileContents);
+		long totalRead = 0;
+		try (FileChannel resultChannel = new FileOutputStream (result).getChannel ()) {
+			// Ganymed SFTP implementation can only read files by blocks no larger than 32768
+			byte[] block = new byte[SFTPv3PipelinedReader.BLOCK_SIZE];
+			int readResult;
+			while (true) {
+				try {
+					readResult = sftpClient.read (fHandle, totalRead, block, 0, block.length);
+				} catch (IOException ioE) {
+					throw new SSHHelperException ("Received an IOException when reading file '" + remoteFilename + "'. It says,\n" + ioE.getMessage ());
+				}
+				if (readResult <= 0) {
+					break;
+				}
+				ByteBuffer bb = ByteBuffer.wrap (block, 0, readResult);
+				while (bb.hasRemaining ()) {
+					resultChannel.write (bb);
+				}
+				totalRead += readResult;
+			}
+		} catch (FileNotFoundException fnfE) {
+			throw new SSHHelperException ("Received a FileNotFoundException when trying to create output file '" + localFilename + "'. It says,\n" + fnfE.getMessage ());
 		} catch (IOException ioE) {
 			throw new SSHHelperException ("Received an IOException when trying to write to output file '" + localFilename + "'. It says,\n" + ioE.getMessage ());
+		} finally {
+			try {
+				sftpClient.closeFile (fHandle);
+			} catch (IOException ioE) {
+				getLoggerWrapper ().warning ("Received an IOException when closing file '" + remoteFilename + "'. It says,\n" + ioE.getMessage ());
+			}
 		}
 
-		try {
-			resultFos.close ();
+		getLoggerWrapper ().info ("Successfully copied " + String.valueOf (totalRead) + " bytes from file '" + remoteFilename + "'");
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Copies a file from SFTP to local filesystem with several read requests
+	 * in flight. The blocks are written locally as they arrive, so any size
+	 * of file is copied in constant memory
+	 *
+	 * @param conn
+	 * @param remoteFilename
+	 * @param localFilename
+	 * @param charsetName remote filename charset, may be null
+	 * @param window number of read requests kept in flight
+	 * @return
+	 * @throws SSHHelperException
+	 * @see SFTPv3PipelinedReader
+	 */
+	public static File copyFileFromSFTPToLocal (Connection conn, String remoteFilename, String localFilename, String charsetName, int window) throws SSHHelperException {
+		Object[] methodParams = {conn, remoteFilename, localFilename, charsetName, window};
+		getLoggerWrapper ().entering (methodParams);
+
+		File result = new File (localFilename);
+
+		try (FileChannel resultChannel = new FileOutputStream (result).getChannel ()) {
+			readBinaryFileFromSFTP (conn, remoteFilename, charsetName, Channels.newOutputStream (resultChannel), window);
+		} catch (FileNotFoundException fnfE) {
+			throw new SSHHelperException ("Received a FileNotFoundException when trying to create output file '" + localFilename + "'. It says,\n" + fnfE.getMessage ());
 		} catch (IOException ioE) {
 			throw new SSHHelperException ("Received an IOException when trying to close output file '" + localFilename + "'. It says,\n" + ioE.getMessage ());
 		}
@@ -624,6 +1055,57 @@ public class SSHHelper {
 		return result;
 	}
 
+	/**
+	 * Copies a file from SFTP to local filesystem. The local file is
+	 * preallocated to the remote size and the pipelined reads are written
+	 * into it as they arrive, so any size of file is copied in constant
+	 * memory
+	 *
+	 * @param channelSftp
+	 * @param remoteFilename as for the other SFTP methods: <code>\</code>,
+	 * <code>*</code> and <code>?</code> in the name are escaped with a
+	 * backslash
+	 * @param localFilename
+	 * @return
+	 * @throws SSHHelperException
+	 */
+	public static File copyFileFromSFTPToLocal (ChannelSftpExtDM channelSftp, String remoteFilename, String localFilename) throws SSHHelperException {
+		getLoggerWrapper ().entering (channelSftp, remoteFilename, localFilename);
+
+		File result = new File (localFilename);
+
+		long totalRead;
+		try {
+			totalRead = channelSftp.get (remoteFilename, result.toPath (), null, ChannelSftpExtDM.OVERWRITE);
+		} catch (SftpException ex) {
+			throw new SSHHelperException (ex);
+		}
+
+		getLoggerWrapper ().info ("Successfully copied " + String.valueOf (totalRead) + " bytes from file '" + remoteFilename + "'");
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Reads the contents of a binary file from SFTP into a sink, with
+	 * several read requests in flight. Files of any size can be read
+	 *
+	 * @param conn
+	 * @param filename
+	 * @param charsetName remote filename charset, may be null
+	 * @param sink is not closed
+	 * @param window number of read requests kept in flight
+	 * @return number of bytes read
+	 * @throws SSHHelperException
+	 * @see SFTPv3PipelinedReader
+	 */
+	public static long readBinaryFileFromSFTP (Connection conn, String filename, String charsetName, OutputStream sink, int window) throws SSHHelperException {
+		SFTPv3PipelinedReader reader = new SFTPv3PipelinedReader (conn, charsetName);
+		reader.setWindow (window);
+		return reader.read (filename, sink);
+	}
+
 	/**
 	 * Reads the contents of a binary file from SFTP. Can read no more than
 	 * Integer.MAX_VALUE (currently 2^31-1) bytes
@@ -633,6 +1115,7 @@ public class SSHHelper {
 	 * @return
 	 * @throws SSHHelperException
 	 * @deprecated
+	 * @see #readBinaryFileFromSFTP(ch.ethz.ssh2.Connection, java.lang.String, java.lang.String, java.io.OutputStream, int)
 	 */
 	public static byte[] readBinaryFileFromSFTP (SFTPv3Client sftpClient, String filename) throws SSHHelperException {
 		Object[] methodParams = {sftpClient, filename};
@@ -729,6 +1212,165 @@ public class SSHHelper {
 		return result;
 	}
 
+	/**
+	 * Reads the contents of a binary file from SFTP straight into an array
+	 * of the size the file has when it is opened, without the copies of
+	 * {@link #readBinaryFileFromSFTP(com.jcraft.jsch.ChannelSftpExtDM, java.lang.String)}.
+	 * The file is read to its end even if it has grown since, or its size is
+	 * not reported, as for files in /proc. Can read no more than
+	 * Integer.MAX_VALUE (currently 2^31-1) bytes
+	 *
+	 * @param channelSftp
+	 * @param filename
+	 * @return
+	 * @throws SSHHelperException
+	 */
+	public static byte[] readBinaryFileFromSFTPPresized (ChannelSftpExtDM channelSftp, String filename) throws SSHHelperException {
+		getLoggerWrapper ().entering (channelSftp, filename);
+
+		ByteBuffer buffer = readWholeFile (channelSftp, filename, false);
+		byte[] result = buffer.array ();
+		if (buffer.limit () < result.length) {
+			// The file has become shorter, or has grown, since it was opened
+			result = Arrays.copyOf (result, buffer.limit ());
+		}
+
+		getLoggerWrapper ().info ("Successfully read " + String.valueOf (result.length) + " bytes from file '" + filename + "'");
+
+		getLoggerWrapper ().exiting ();	// Not logging the result as it may be huge
+		return result;
+	}
+
+	/**
+	 * Reads a range of a binary file from SFTP. If a block cache is set, the
+	 * range is read through it
+	 *
+	 * @param channelSftp
+	 * @param filename
+	 * @param position offset in the file
+	 * @param length
+	 * @return the bytes read, fewer than <code>length</code> at the end of
+	 * the file
+	 * @throws SSHHelperException
+	 * @see #setBlockCache(ru.dmerkushov.sshhelper.SFTPBlockCache)
+	 */
+	public static byte[] readBinaryFileRangeFromSFTP (ChannelSftpExtDM channelSftp, String filename, long position, int length) throws SSHHelperException {
+		getLoggerWrapper ().entering (channelSftp, filename, position, length);
+
+		byte[] result = new byte[length];
+		int read;
+		SFTPBlockCache cache = blockCache;
+		if (cache != null) {
+			read = Math.max (0, cache.read (channelSftp, filename, position, result, 0, length));
+		} else if (length == 0) {
+			read = 0;
+		} else {
+			try {
+				read = channelSftp.getRange (filename, ByteBuffer.wrap (result), position, null);
+			} catch (SftpException ex) {
+				throw new SSHHelperException (ex);
+			}
+		}
+		if (read < length) {
+			result = Arrays.copyOf (result, read);
+		}
+
+		getLoggerWrapper ().exiting ();	// Not logging the result as it may be huge
+		return result;
+	}
+
+	/**
+	 * Reads the contents of a binary file from SFTP into a buffer of the
+	 * file size, like {@link #readBinaryFileFromSFTPPresized(com.jcraft.jsch.ChannelSftpExtDM, java.lang.String)}.
+	 * Can read no more than Integer.MAX_VALUE (currently 2^31-1) bytes
+	 *
+	 * @param channelSftp
+	 * @param filename
+	 * @param direct allocate a direct buffer, outside the Java heap
+	 * @return a buffer with the position at 0 and the limit at the end of the
+	 * data
+	 * @throws SSHHelperException
+	 */
+	public static ByteBuffer readBinaryFileFromSFTPToBuffer (ChannelSftpExtDM channelSftp, String filename, boolean direct) throws SSHHelperException {
+		getLoggerWrapper ().entering (channelSftp, filename, direct);
+
+		ByteBuffer result = readWholeFile (channelSftp, filename, direct);
+
+		getLoggerWrapper ().info ("Successfully read " + String.valueOf (result.limit ()) + " bytes from file '" + filename + "'");
+
+		getLoggerWrapper ().exiting ();	// Not logging the result as it may be huge
+		return result;
+	}
+
+	private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+	private static final int PROBE_SIZE = 8192;
+
+	/**
+	 * Read a whole file into a buffer allocated for the size FSTAT reports.
+	 * When the buffer is full, the file is probed for more data, so a file
+	 * that has grown, or whose size is reported as 0, is still read to its
+	 * end; the buffer is then enlarged
+	 *
+	 * @return a buffer with the position at 0 and the limit at the end of the
+	 * data
+	 */
+	private static ByteBuffer readWholeFile (ChannelSftpExtDM channelSftp, String filename, boolean direct) throws SSHHelperException {
+		byte[] handle = null;
+		try {
+			handle = channelSftp.openForRead (filename);
+			long size = channelSftp.fstat (handle).getSize ();
+			if (size > MAX_ARRAY_SIZE) {
+				throw new SSHHelperException ("File '" + filename + "' is too big to be read into memory: " + size + " bytes");
+			}
+
+			ByteBuffer buffer = allocate ((int) size, direct);
+			ByteBuffer probe = null;
+			while (true) {
+				if (buffer.hasRemaining ()) {
+					int n = channelSftp.getRange (handle, buffer, buffer.position ());
+					buffer.position (buffer.position () + n);
+					if (buffer.hasRemaining ()) {
+						break;
+					}
+				}
+
+				if (probe == null) {
+					probe = ByteBuffer.allocate (PROBE_SIZE);
+				}
+				probe.clear ();
+				int n = channelSftp.getRange (handle, probe, buffer.position ());
+				if (n == 0) {
+					break;
+				}
+				probe.limit (n);
+
+				long capacity = Math.max ((long) buffer.capacity () * 2, (long) buffer.position () + PROBE_SIZE);
+				if ((long) buffer.position () + n > MAX_ARRAY_SIZE) {
+					throw new SSHHelperException ("File '" + filename + "' is too big to be read into memory");
+				}
+				buffer.flip ();
+				buffer = allocate ((int) Math.min (capacity, MAX_ARRAY_SIZE), direct).put (buffer).put (probe);
+			}
+
+			buffer.flip ();
+			return buffer;
+		} catch (SftpException ex) {
+			throw new SSHHelperException (ex);
+		} finally {
+			if (handle != null) {
+				try {
+					channelSftp.closeHandle (handle);
+				} catch (SftpException ex) {
+					getLoggerWrapper ().warning ("Cannot close file '" + filename + "': " + ex);
+				}
+			}
+		}
+	}
+
+	private static ByteBuffer allocate (int capacity, boolean direct) {
+		return direct ? ByteBuffer.allocateDirect (capacity) : ByteBuffer.allocate (capacity);
+	}
+
 	/**
 	 * Reads the contents of a text file in the specified charset from SFTP
 	 *
@@ -777,4 +1419,79 @@ public class SSHHelper {
 		getLoggerWrapper ().exiting ();	// Not logging the result as it may be huge
 		return result;
 	}
+
+	/**
+	 * Opens a reader of a text file in the specified charset on SFTP. The file
+	 * is read ahead with pipelined requests and decoded as it is read, so any
+	 * size of file is read in constant memory. The reader must be closed
+	 *
+	 * @param channelSftp
+	 * @param filename
+	 * @param charset
+	 * @return
+	 * @throws SSHHelperException
+	 */
+	public static Reader openTextFileReaderFromSFTP (ChannelSftpExtDM channelSftp, String filename, String charset) throws SSHHelperException {
+		getLoggerWrapper ().entering (channelSftp, filename, charset);
+
+		if (!Charset.isSupported (charset)) {
+			throw new SSHHelperException ("Charset " + charset + " is not supported");
+		}
+
+		Reader result;
+		try {
+			result = new InputStreamReader (channelSftp.get (filename), charset);
+		} catch (SftpException | java.io.UnsupportedEncodingException ex) {
+			throw new SSHHelperException (ex);
+		}
+
+		getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Opens a buffered reader of a text file in the specified charset on SFTP,
+	 * to read it line by line. The reader must be closed
+	 *
+	 * @param channelSftp
+	 * @param filename
+	 * @param charset
+	 * @return
+	 * @throws SSHHelperException
+	 * @see #openTextFileReaderFromSFTP(com.jcraft.jsch.ChannelSftpExtDM, java.lang.String, java.lang.String)
+	 */
+	public static BufferedReader openBufferedTextFileReaderFromSFTP (ChannelSftpExtDM channelSftp, String filename, String charset) throws SSHHelperException {
+		return new BufferedReader (openTextFileReaderFromSFTP (channelSftp, filename, charset));
+	}
+
+	/**
+	 * Reads a text file in the specified charset from SFTP line by line,
+	 * passing every line to a listener as soon as it is decoded
+	 *
+	 * @param channelSftp
+	 * @param filename
+	 * @param charset
+	 * @param listener receives the lines, without the line terminators
+	 * @return number of lines read
+	 * @throws SSHHelperException
+	 */
+	public static long readTextFileLinesFromSFTP (ChannelSftpExtDM channelSftp, String filename, String charset, SSHLineListener listener) throws SSHHelperException {
+		getLoggerWrapper ().entering (channelSftp, filename, charset, listener);
+
+		long lines = 0;
+		try (BufferedReader reader = openBufferedTextFileReaderFromSFTP (channelSftp, filename, charset)) {
+			String line;
+			while ((line = reader.readLine ()) != null) {
+				listener.line (line);
+				lines++;
+			}
+		} catch (IOException ex) {
+			throw new SSHHelperException (ex);
+		}
+
+		getLoggerWrapper ().info ("Successfully read " + String.valueOf (lines) + " lines from file '" + filename + "'");
+
+		getLoggerWrapper ().exiting (lines);
+		return lines;
+	}
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+/**
+ * Connection parameters of an SSH host, as accepted by
+ * {@link SSHHelper#connect(java.lang.String, int, java.lang.String, java.lang.String, java.lang.String, java.lang.String)}
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SSHHost {
+
+	private final String hostname;
+	private final int port;
+	private final String username;
+	private final String password;
+	private final String knownHostsFilePath;
+	private final String identityFilePath;
+
+	/**
+	 * @param hostname
+	 * @param port
+	 * @param username
+	 * @param password
+	 * @param knownHostsFilePath may be null
+	 * @param identityFilePath may be null
+	 */
+	public SSHHost (String hostname, int port, String username, String password, String knownHostsFilePath, String identityFilePath) {
+		this.hostname = hostname;
+		this.port = port;
+		this.username = username;
+		this.password = password;
+		this.knownHostsFilePath = knownHostsFilePath;
+		this.identityFilePath = identityFilePath;
+	}
+
+	public String getHostname () {
+		return hostname;
+	}
+
+	public int getPort () {
+		return port;
+	}
+
+	public String getUsername () {
+		return username;
+	}
+
+	public String getPassword () {
+		return password;
+	}
+
+	public String getKnownHostsFilePath () {
+		return knownHostsFilePath;
+	}
+
+	public String getIdentityFilePath () {
+		return identityFilePath;
+	}
+
+	@Override
+	public String toString () {
+		return username + "@" + hostname + ":" + port;
+	}
+}
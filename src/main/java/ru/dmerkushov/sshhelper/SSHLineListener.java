@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import java.io.IOException;
+
+/**
+ * Receives command output line by line
+ *
+ * @author Dmitriy Merkushov
+ * @see SSHLineOutputStream
+ */
+public interface SSHLineListener {
+
+	/**
+	 * Called for every line of output
+	 *
+	 * @param line the line without the line terminator
+	 * @throws IOException
+	 */
+	public void line (String line) throws IOException;
+}
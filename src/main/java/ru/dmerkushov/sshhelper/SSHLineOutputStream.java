@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Output stream that splits the bytes written into lines and passes each
+ * decoded line to an {@link SSHLineListener}. Lines are split on
+ * <code>\n</code>; a trailing <code>\r</code> is dropped. Only the current
+ * line is buffered, so memory use does not grow with the amount of output.
+ * Lines longer than <code>maxLineLength</code> bytes are passed on in pieces.
+ *
+ * The last line is passed on when the stream is closed, even if it has no
+ * line terminator. <code>flush ()</code> does not pass partial lines on.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SSHLineOutputStream extends OutputStream {
+
+	public static final int DEFAULT_MAX_LINE_LENGTH = 1024 * 1024;
+
+	private final SSHLineListener listener;
+	private final Charset charset;
+	private final int maxLineLength;
+
+	private byte[] lineBuffer = new byte[256];
+	private int lineLength = 0;
+	private boolean closed = false;
+
+	public SSHLineOutputStream (SSHLineListener listener, String charsetName) {
+		this (listener, charsetName, DEFAULT_MAX_LINE_LENGTH);
+	}
+
+	public SSHLineOutputStream (SSHLineListener listener, String charsetName, int maxLineLength) {
+		if (listener == null) {
+			throw new NullPointerException ("listener");
+		}
+		if (maxLineLength <= 0) {
+			throw new IllegalArgumentException ("maxLineLength must be greater than 0: " + maxLineLength);
+		}
+		this.listener = listener;
+		this.charset = Charset.forName (charsetName);
+		this.maxLineLength = maxLineLength;
+	}
+
+	@Override
+	public void write (int b) throws IOException {
+		if (closed) {
+			throw new IOException ("stream already closed");
+		}
+		if (b == '\n') {
+			emitLine ();
+		} else {
+			append ((byte) b);
+		}
+	}
+
+	@Override
+	public void write (byte[] b, int off, int len) throws IOException {
+		if (closed) {
+			throw new IOException ("stream already closed");
+		}
+		int end = off + len;
+		int lineStart = off;
+		for (int i = off; i < end; i++) {
+			if (b[i] == '\n') {
+				append (b, lineStart, i - lineStart);
+				emitLine ();
+				lineStart = i + 1;
+			}
+		}
+		append (b, lineStart, end - lineStart);
+	}
+
+	@Override
+	public void close () throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (lineLength > 0) {
+			emitLine ();
+		}
+	}
+
+	private void append (byte b) throws IOException {
+		if (lineLength == maxLineLength) {
+			emitLine ();
+		}
+		ensureCapacity (lineLength + 1);
+		lineBuffer[lineLength++] = b;
+	}
+
+	private void append (byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (lineLength == maxLineLength) {
+				emitLine ();
+			}
+			int chunk = Math.min (len, maxLineLength - lineLength);
+			ensureCapacity (lineLength + chunk);
+			System.arraycopy (b, off, lineBuffer, lineLength, chunk);
+			lineLength += chunk;
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	private void ensureCapacity (int capacity) {
+		if (capacity > lineBuffer.length) {
+			int newLength = Math.min (Math.max (lineBuffer.length * 2, capacity), maxLineLength);
+			byte[] newBuffer = new byte[newLength];
+			System.arraycopy (lineBuffer, 0, newBuffer, 0, lineLength);
+			lineBuffer = newBuffer;
+		}
+	}
+
+	private void emitLine () throws IOException {
+		int length = lineLength;
+		if (length > 0 && lineBuffer[length - 1] == '\r') {
+			length--;
+		}
+		lineLength = 0;
+		listener.line (new String (lineBuffer, 0, length, charset));
+	}
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.Session;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of connected JSch sessions keyed by host, port, user and identity
+ * file. Sessions are borrowed with
+ * {@link #borrow(java.lang.String, int, java.lang.String, java.lang.String, java.lang.String, java.lang.String)}
+ * and given back with {@link #release(com.jcraft.jsch.Session)}, so the TCP
+ * connect, key exchange and authentication are paid once per pooled session
+ * instead of once per operation.
+ *
+ * To make the existing {@link SSHHelper#connect(java.lang.String, int, java.lang.String, java.lang.String, java.lang.String, java.lang.String)}
+ * and {@link SSHHelper#disconnect(com.jcraft.jsch.Session)} callers use a
+ * pool, install it with {@link SSHHelper#setSessionPool(ru.dmerkushov.sshhelper.SSHSessionPool)}.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SSHSessionPool {
+
+	public static final int DEFAULT_MAX_PER_KEY = 4;
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000L;
+	public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 30000L;
+
+	/**
+	 * How long the liveness check of an idle session waits for the server
+	 */
+	static final int VALIDATION_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * Sessions idle for less than this are reused without the liveness check
+	 */
+	static final long VALIDATION_MIN_IDLE_MILLIS = 2000L;
+
+	private final int maxPerKey;
+	private final long idleTimeoutMillis;
+	private final long borrowTimeoutMillis;
+
+	private final Map<Key, KeyEntry> entries = new HashMap<> ();
+	private final Map<Session, Key> borrowed = new IdentityHashMap<> ();
+
+	private final AtomicLong hits = new AtomicLong ();
+	private final AtomicLong misses = new AtomicLong ();
+	private final AtomicLong evictions = new AtomicLong ();
+	private final AtomicLong validationFailures = new AtomicLong ();
+
+	private Timer evictionTimer;
+	private boolean closed = false;
+
+	/**
+	 * Create a pool with the default limits
+	 */
+	public SSHSessionPool () {
+		this (DEFAULT_MAX_PER_KEY, DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_BORROW_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Create a pool
+	 *
+	 * @param maxPerKey maximum number of sessions (idle and borrowed) for a
+	 * single host, port, user and identity combination
+	 * @param idleTimeoutMillis idle sessions older than this are disconnected.
+	 * 0 disables idle eviction
+	 * @param borrowTimeoutMillis how long {@link #borrow(java.lang.String, int, java.lang.String, java.lang.String, java.lang.String, java.lang.String)}
+	 * waits for a session when the limit is reached. 0 means fail at once
+	 */
+	public SSHSessionPool (int maxPerKey, long idleTimeoutMillis, long borrowTimeoutMillis) {
+		if (maxPerKey <= 0) {
+			throw new IllegalArgumentException ("maxPerKey must be greater than 0: " + maxPerKey);
+		}
+		this.maxPerKey = maxPerKey;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+
+		if (idleTimeoutMillis > 0) {
+			long period = Math.max (1000L, idleTimeoutMillis / 2);
+			evictionTimer = new Timer ("SSHSessionPool idle eviction", true);
+			evictionTimer.schedule (new TimerTask () {
+				@Override
+				public void run () {
+					evictIdle ();
+				}
+			}, period, period);
+		}
+	}
+
+	/**
+	 * Borrow a connected session. An idle pooled session is reused if it
+	 * passes the liveness check, otherwise a new one is connected. Sessions
+	 * idle for less than two seconds are only checked to be connected
+	 *
+	 * @param hostname
+	 * @param port
+	 * @param username
+	 * @param password
+	 * @param knownHostsFilePath
+	 * @param identityFilePath
+	 * @return
+	 * @throws SSHHelperException if the session cannot be connected, the pool
+	 * is closed, or no session becomes available within the borrow timeout
+	 */
+	public Session borrow (String hostname, int port, String username, String password, String knownHostsFilePath, String identityFilePath) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (hostname, port, username, "(password hidden)", knownHostsFilePath, identityFilePath);
+
+		Key key = new Key (hostname, port, username, identityFilePath);
+		Session session = null;
+
+		long deadline = System.currentTimeMillis () + borrowTimeoutMillis;
+
+		while (session == null) {
+			Session candidate = null;
+			long idleMillis = 0;
+			boolean reserved = false;
+
+			synchronized (this) {
+				if (closed) {
+					throw new SSHHelperException ("Session pool is closed");
+				}
+				KeyEntry entry = entryFor (key);
+
+				if (!entry.idle.isEmpty ()) {
+					IdleSession idleSession = entry.idle.pollLast ();
+					candidate = idleSession.session;
+					idleMillis = System.currentTimeMillis () - idleSession.since;
+				} else if (entry.total < maxPerKey) {
+					entry.total++;
+					reserved = true;
+				} else {
+					long wait = deadline - System.currentTimeMillis ();
+					if (wait <= 0) {
+						throw new SSHHelperException ("No pooled session available for " + key + " within " + borrowTimeoutMillis + " ms");
+					}
+					try {
+						wait (wait);
+					} catch (InterruptedException ex) {
+						Thread.currentThread ().interrupt ();
+						throw new SSHHelperException (ex);
+					}
+					continue;
+				}
+			}
+
+			if (candidate != null) {
+				if (idleMillis < VALIDATION_MIN_IDLE_MILLIS ? candidate.isConnected () : isAlive (candidate)) {
+					hits.incrementAndGet ();
+					session = candidate;
+				} else {
+					validationFailures.incrementAndGet ();
+					discard (key, candidate);
+				}
+			} else if (reserved) {
+				misses.incrementAndGet ();
+				try {
+					session = SSHHelper.openSession (hostname, port, username, password, knownHostsFilePath, identityFilePath);
+				} catch (SSHHelperException | RuntimeException ex) {
+					synchronized (this) {
+						entryFor (key).total--;
+						notifyAll ();
+					}
+					throw ex;
+				}
+			}
+		}
+
+		synchronized (this) {
+			borrowed.put (session, key);
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting (session);
+		return session;
+	}
+
+	/**
+	 * Give a borrowed session back to the pool. A disconnected session is
+	 * dropped instead of being pooled
+	 *
+	 * @param session
+	 * @throws IllegalArgumentException if the session was not borrowed from
+	 * this pool
+	 */
+	public void release (Session session) {
+		SSHHelper.getLoggerWrapper ().entering (session);
+
+		Key key;
+		synchronized (this) {
+			key = borrowed.remove (session);
+			if (key == null) {
+				throw new IllegalArgumentException ("Session was not borrowed from this pool: " + session);
+			}
+			if (!closed && session.isConnected ()) {
+				entryFor (key).idle.addLast (new IdleSession (session, System.currentTimeMillis ()));
+				notifyAll ();
+				session = null;
+			}
+		}
+		if (session != null) {
+			discard (key, session);
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * Drop a borrowed session from the pool and disconnect it. Use this when
+	 * the session is known to be broken
+	 *
+	 * @param session
+	 */
+	public void invalidate (Session session) {
+		SSHHelper.getLoggerWrapper ().entering (session);
+
+		Key key;
+		synchronized (this) {
+			key = borrowed.remove (session);
+		}
+		if (key != null) {
+			discard (key, session);
+		} else {
+			session.disconnect ();
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * Check whether a session is currently borrowed from this pool
+	 *
+	 * @param session
+	 * @return
+	 */
+	public synchronized boolean isBorrowed (Session session) {
+		return borrowed.containsKey (session);
+	}
+
+	/**
+	 * Disconnect the idle sessions that have been idle longer than the idle
+	 * timeout. Called periodically by the pool itself, but may be called
+	 * explicitly as well
+	 *
+	 * @return the number of sessions evicted
+	 */
+	public int evictIdle () {
+		if (idleTimeoutMillis <= 0) {
+			return 0;
+		}
+
+		List<Session> toDisconnect = new ArrayList<> ();
+		long threshold = System.currentTimeMillis () - idleTimeoutMillis;
+
+		synchronized (this) {
+			Iterator<Map.Entry<Key, KeyEntry>> entryIterator = entries.entrySet ().iterator ();
+			while (entryIterator.hasNext ()) {
+				KeyEntry entry = entryIterator.next ().getValue ();
+				Iterator<IdleSession> idleIterator = entry.idle.iterator ();
+				while (idleIterator.hasNext ()) {
+					IdleSession idleSession = idleIterator.next ();
+					if (idleSession.since < threshold || !idleSession.session.isConnected ()) {
+						idleIterator.remove ();
+						entry.total--;
+						toDisconnect.add (idleSession.session);
+					}
+				}
+				if (entry.total == 0) {
+					entryIterator.remove ();
+				}
+			}
+			if (!toDisconnect.isEmpty ()) {
+				notifyAll ();
+			}
+		}
+
+		for (Session session : toDisconnect) {
+			session.disconnect ();
+		}
+		evictions.addAndGet (toDisconnect.size ());
+
+		if (!toDisconnect.isEmpty ()) {
+			SSHHelper.getLoggerWrapper ().finer ("Evicted " + toDisconnect.size () + " idle SSH sessions");
+		}
+		return toDisconnect.size ();
+	}
+
+	/**
+	 * Close the pool: disconnect all idle sessions and stop the eviction
+	 * timer. Borrowed sessions are disconnected when they are released
+	 */
+	public void close () {
+		SSHHelper.getLoggerWrapper ().entering ();
+
+		List<Session> toDisconnect = new ArrayList<> ();
+		synchronized (this) {
+			closed = true;
+			if (evictionTimer != null) {
+				evictionTimer.cancel ();
+				evictionTimer = null;
+			}
+			for (KeyEntry entry : entries.values ()) {
+				for (IdleSession idleSession : entry.idle) {
+					toDisconnect.add (idleSession.session);
+				}
+				entry.total -= entry.idle.size ();
+				entry.idle.clear ();
+			}
+			notifyAll ();
+		}
+		for (Session session : toDisconnect) {
+			session.disconnect ();
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * @return number of borrows served by an idle pooled session
+	 */
+	public long getHitCount () {
+		return hits.get ();
+	}
+
+	/**
+	 * @return number of borrows that had to connect a new session
+	 */
+	public long getMissCount () {
+		return misses.get ();
+	}
+
+	/**
+	 * @return number of idle sessions disconnected by idle eviction
+	 */
+	public long getEvictionCount () {
+		return evictions.get ();
+	}
+
+	/**
+	 * @return number of idle sessions that failed the liveness check on borrow
+	 */
+	public long getValidationFailureCount () {
+		return validationFailures.get ();
+	}
+
+	/**
+	 * @return number of idle sessions currently in the pool
+	 */
+	public synchronized int getIdleCount () {
+		int result = 0;
+		for (KeyEntry entry : entries.values ()) {
+			result += entry.idle.size ();
+		}
+		return result;
+	}
+
+	/**
+	 * @return number of sessions currently borrowed from the pool
+	 */
+	public synchronized int getBorrowedCount () {
+		return borrowed.size ();
+	}
+
+	private KeyEntry entryFor (Key key) {
+		KeyEntry entry = entries.get (key);
+		if (entry == null) {
+			entry = new KeyEntry ();
+			entries.put (key, entry);
+		}
+		return entry;
+	}
+
+	private void discard (Key key, Session session) {
+		synchronized (this) {
+			KeyEntry entry = entries.get (key);
+			if (entry != null) {
+				entry.total--;
+				if (entry.total == 0 && entry.idle.isEmpty ()) {
+					entries.remove (key);
+				}
+			}
+			notifyAll ();
+		}
+		session.disconnect ();
+	}
+
+	/**
+	 * A keep-alive message is only queued, so a half-open connection would
+	 * pass it. Opening a channel waits for the server to answer. A plain
+	 * session channel is opened: no shell, command or subsystem is started
+	 * for it, so the check works on hosts without SFTP too
+	 */
+	private static boolean isAlive (Session session) {
+		if (!session.isConnected ()) {
+			return false;
+		}
+		Channel channel = null;
+		try {
+			channel = session.openChannel ("session");
+			channel.connect (VALIDATION_TIMEOUT_MILLIS);
+		} catch (Exception ex) {
+			SSHHelper.getLoggerWrapper ().finer ("Pooled session failed the liveness check: " + ex);
+			return false;
+		} finally {
+			if (channel != null) {
+				channel.disconnect ();
+			}
+		}
+		return session.isConnected ();
+	}
+
+	/**
+	 * Pool key: host, port, user and identity file
+	 */
+	public static final class Key {
+
+		private final String hostname;
+		private final int port;
+		private final String username;
+		private final String identityFilePath;
+
+		public Key (String hostname, int port, String username, String identityFilePath) {
+			this.hostname = hostname;
+			this.port = port;
+			this.username = username;
+			this.identityFilePath = identityFilePath;
+		}
+
+		@Override
+		public boolean equals (Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return port == other.port
+					&& equal (hostname, other.hostname)
+					&& equal (username, other.username)
+					&& equal (identityFilePath, other.identityFilePath);
+		}
+
+		@Override
+		public int hashCode () {
+			int result = port;
+			result = 31 * result + (hostname == null ? 0 : hostname.hashCode ());
+			result = 31 * result + (username == null ? 0 : username.hashCode ());
+			result = 31 * result + (identityFilePath == null ? 0 : identityFilePath.hashCode ());
+			return result;
+		}
+
+		@Override
+		public String toString () {
+			return username + "@" + hostname + ":" + port + (identityFilePath != null ? " (" + identityFilePath + ")" : "");
+		}
+
+		private static boolean equal (Object a, Object b) {
+			return a == null ? b == null : a.equals (b);
+		}
+	}
+
+	private static class KeyEntry {
+
+		final ArrayDeque<IdleSession> idle = new ArrayDeque<> ();
+		int total = 0;
+	}
+
+	private static class IdleSession {
+
+		final Session session;
+		final long since;
+
+		IdleSession (Session session, long since) {
+			this.session = session;
+			this.since = since;
+		}
+	}
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelShell;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import ru.dmerkushov.oshelper.OSHelper.ProcessReturn;
+
+/**
+ * Runs commands in one persistent shell channel instead of opening an exec
+ * channel per command. Commands are written to the shell back to back, each
+ * framed by start and end marker lines that carry a random token, the
+ * command number and, on stdout, the exit code. The output is split back into
+ * one {@link ProcessReturn} per command, so many commands can be pipelined
+ * without waiting for each one before sending the next.
+ *
+ * The remote login shell must be POSIX compatible. No pseudo-terminal is
+ * requested, so there is no echo and no prompt in the output. Commands run
+ * with stdin redirected from <code>/dev/null</code>; they share the shell
+ * state, so e.g. <code>cd</code> affects the commands that follow. A command
+ * that exits the shell ends the executor.
+ *
+ * @author Dmitriy Merkushov
+ */
+public class SSHShellExecutor {
+
+	private static final String MARKER_START = "START";
+	private static final String MARKER_END = "END";
+
+	private final Session session;
+	private final ChannelShell channelShell;
+	private final OutputStream shellInput;
+	private final Charset charset;
+	private final String markerPrefix;
+	private final byte[] markerPrefixBytes;
+	final OutputStream stdoutSink = new Demultiplexer (true);
+	final OutputStream stderrSink = new Demultiplexer (false);
+
+	private final Map<Integer, PendingCommand> pending = Collections.synchronizedMap (new HashMap<Integer, PendingCommand> ());
+	private int nextId = 1;
+	private volatile boolean closed = false;
+
+	/**
+	 * Open a shell channel in a session
+	 *
+	 * @param session
+	 * @param charset charset of the commands and their output
+	 * @throws SSHHelperException
+	 */
+	public SSHShellExecutor (Session session, String charset) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (session, charset);
+
+		if (!Charset.isSupported (charset)) {
+			throw new SSHHelperException ("Charset " + charset + " is not supported");
+		}
+		this.session = session;
+		this.charset = Charset.forName (charset);
+
+		SecureRandom random = new SecureRandom ();
+		markerPrefix = "__SSHHELPER_" + Long.toHexString (random.nextLong () & Long.MAX_VALUE) + "_";
+		markerPrefixBytes = markerPrefix.getBytes (this.charset);
+
+		try {
+			channelShell = (ChannelShell) session.openChannel ("shell");
+			channelShell.setPty (false);
+			channelShell.setOutputStream (stdoutSink);
+			channelShell.setExtOutputStream (stderrSink);
+			shellInput = channelShell.getOutputStream ();
+			channelShell.connect ();
+		} catch (JSchException | IOException ex) {
+			throw new SSHHelperException (ex);
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * An executor without a channel, for tests: the commands are written to
+	 * <code>shellInput</code>, and the shell output is to be written to
+	 * {@link #stdoutSink} and {@link #stderrSink}
+	 */
+	SSHShellExecutor (Charset charset, String markerPrefix, OutputStream shellInput) {
+		this.session = null;
+		this.channelShell = null;
+		this.shellInput = shellInput;
+		this.charset = charset;
+		this.markerPrefix = markerPrefix;
+		this.markerPrefixBytes = markerPrefix.getBytes (charset);
+	}
+
+	/**
+	 * Run one command in the shell
+	 *
+	 * @param command
+	 * @return
+	 * @throws SSHHelperException
+	 */
+	public ProcessReturn execute (String command) throws SSHHelperException {
+		return execute (Collections.singletonList (command)).get (0);
+	}
+
+	/**
+	 * Send all the commands to the shell at once and wait for their results
+	 *
+	 * @param commands
+	 * @return the results, in the order of <code>commands</code>
+	 * @throws SSHHelperException if the shell has ended before all the
+	 * commands have finished
+	 */
+	public synchronized List<ProcessReturn> execute (List<String> commands) throws SSHHelperException {
+		SSHHelper.getLoggerWrapper ().entering (commands);
+
+		if (closed) {
+			throw new SSHHelperException ("Shell executor is closed");
+		}
+
+		List<PendingCommand> batch = new ArrayList<> (commands.size ());
+		StringBuilder script = new StringBuilder ();
+		for (String command : commands) {
+			int id = nextId++;
+			PendingCommand pendingCommand = new PendingCommand ();
+			pending.put (id, pendingCommand);
+			batch.add (pendingCommand);
+			appendFramedCommand (script, id, command);
+		}
+
+		List<ProcessReturn> result = new ArrayList<> (commands.size ());
+		try {
+			shellInput.write (script.toString ().getBytes (charset));
+			shellInput.flush ();
+
+			for (PendingCommand pendingCommand : batch) {
+				pendingCommand.done.await ();
+				if (pendingCommand.failure != null) {
+					throw new SSHHelperException (pendingCommand.failure);
+				}
+				ProcessReturn processReturn = new ProcessReturn ();
+				processReturn.exitCode = pendingCommand.exitCode;
+				processReturn.stdout = new String (pendingCommand.stdout.toByteArray (), charset);
+				processReturn.stderr = new String (pendingCommand.stderr.toByteArray (), charset);
+				result.add (processReturn);
+			}
+		} catch (IOException | InterruptedException ex) {
+			throw new SSHHelperException (ex);
+		}
+
+		SSHHelper.getLoggerWrapper ().exiting (result);
+		return result;
+	}
+
+	/**
+	 * Close the shell channel. The session is left open
+	 */
+	public void close () {
+		SSHHelper.getLoggerWrapper ().entering ();
+
+		closed = true;
+		channelShell.disconnect ();
+		failPending ("Shell executor is closed");
+
+		SSHHelper.getLoggerWrapper ().exiting ();
+	}
+
+	/**
+	 * @return false if the shell channel has been closed
+	 */
+	public boolean isOpen () {
+		return !closed && channelShell.isConnected () && session.isConnected ();
+	}
+
+	private void appendFramedCommand (StringBuilder script, int id, String command) {
+		String start = markerPrefix + id + "_" + MARKER_START;
+		String end = markerPrefix + id + "_" + MARKER_END;
+		script.append ("printf '%s\\n' '").append (start).append ("'; printf '%s\\n' '").append (start).append ("' >&2\n");
+		// The newline before the closing brace keeps a trailing comment or '&' in the command harmless
+		script.append ("{ ").append (command).append ("\n} < /dev/null\n");
+		// The markers are preceded by a newline so that they are on a line of their own
+		// even if the output has no trailing newline. The parser removes that newline
+		script.append ("__sshhelper_rc=$?; printf '\\n%s_%d\\n' '").append (end).append ("' \"$__sshhelper_rc\"; printf '\\n%s\\n' '").append (end).append ("' >&2\n");
+	}
+
+	private void failPending (String message) {
+		synchronized (pending) {
+			for (PendingCommand pendingCommand : pending.values ()) {
+				if (pendingCommand.failure == null) {
+					pendingCommand.failure = message;
+				}
+				while (pendingCommand.done.getCount () > 0) {
+					pendingCommand.done.countDown ();
+				}
+			}
+			pending.clear ();
+		}
+	}
+
+	private static class PendingCommand {
+
+		final ByteArrayOutputStream stdout = new ByteArrayOutputStream ();
+		final ByteArrayOutputStream stderr = new ByteArrayOutputStream ();
+		final CountDownLatch done = new CountDownLatch (2);
+		volatile int exitCode = -1;
+		volatile String failure = null;
+	}
+
+	/**
+	 * Splits one of the shell output streams into lines, recognizes the marker
+	 * lines and collects the lines between them into the pending commands.
+	 * Written by the JSch session thread
+	 */
+	private class Demultiplexer extends OutputStream {
+
+		private final boolean isStdout;
+		private byte[] line = new byte[256];
+		private int lineLength = 0;
+		private PendingCommand current = null;
+		private boolean closed = false;
+
+		Demultiplexer (boolean isStdout) {
+			this.isStdout = isStdout;
+		}
+
+		@Override
+		public void write (int b) throws IOException {
+			appendToLine ((byte) b);
+			if (b == '\n') {
+				processLine ();
+			}
+		}
+
+		@Override
+		public void write (byte[] b, int off, int len) throws IOException {
+			int end = off + len;
+			int lineStart = off;
+			for (int i = off; i < end; i++) {
+				if (b[i] == '\n') {
+					appendToLine (b, lineStart, i + 1 - lineStart);
+					processLine ();
+					lineStart = i + 1;
+				}
+			}
+			appendToLine (b, lineStart, end - lineStart);
+		}
+
+		@Override
+		public void close () throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (!isStdout) {
+				// The stderr stream is closed when the channel is disconnected
+				SSHShellExecutor.this.closed = true;
+				failPending ("The shell has ended");
+			}
+		}
+
+		private void appendToLine (byte b) {
+			ensureCapacity (lineLength + 1);
+			line[lineLength++] = b;
+		}
+
+		private void appendToLine (byte[] b, int off, int len) {
+			ensureCapacity (lineLength + len);
+			System.arraycopy (b, off, line, lineLength, len);
+			lineLength += len;
+		}
+
+		private void ensureCapacity (int capacity) {
+			if (capacity > line.length) {
+				byte[] newLine = new byte[Math.max (line.length * 2, capacity)];
+				System.arraycopy (line, 0, newLine, 0, lineLength);
+				line = newLine;
+			}
+		}
+
+		private void processLine () {
+			int length = lineLength;
+			lineLength = 0;
+
+			if (isMarker (length)) {
+				String marker = new String (line, markerPrefixBytes.length, length - markerPrefixBytes.length - 1, charset);
+				String[] parts = marker.split ("_");
+				int id = Integer.parseInt (parts[0]);
+				PendingCommand pendingCommand = pending.get (id);
+				if (parts[1].equals (MARKER_START)) {
+					current = pendingCommand;
+				} else if (pendingCommand != null) {
+					ByteArrayOutputStream output = isStdout ? pendingCommand.stdout : pendingCommand.stderr;
+					byte[] captured = output.toByteArray ();
+					output.reset ();
+					// Drop the newline printed before the end marker
+					output.write (captured, 0, Math.max (0, captured.length - 1));
+					if (isStdout && parts.length > 2) {
+						pendingCommand.exitCode = Integer.parseInt (parts[2]);
+					}
+					current = null;
+					synchronized (pending) {
+						pendingCommand.done.countDown ();
+						if (pendingCommand.done.getCount () == 0) {
+							pending.remove (id);
+						}
+					}
+				}
+				return;
+			}
+
+			if (current != null) {
+				ByteArrayOutputStream output = isStdout ? current.stdout : current.stderr;
+				output.write (line, 0, length);
+			}
+		}
+
+		private boolean isMarker (int length) {
+			if (length <= markerPrefixBytes.length) {
+				return false;
+			}
+			for (int i = 0; i < markerPrefixBytes.length; i++) {
+				if (line[i] != markerPrefixBytes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
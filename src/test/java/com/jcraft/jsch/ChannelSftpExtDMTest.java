@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcraft.jsch;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * @author Dmitriy Merkushov
+ */
+public class ChannelSftpExtDMTest extends TestCase {
+
+	private final Map<String, byte[]> files = new HashMap<> ();
+	private FakeSftpSession session;
+	private ChannelSftpExtDM channel;
+	private File local;
+
+	@Override
+	protected void setUp () throws Exception {
+		session = new FakeSftpSession (files);
+		channel = session.openSftpChannel ();
+		local = File.createTempFile ("get", ".bin");
+		local.delete ();
+	}
+
+	@Override
+	protected void tearDown () throws Exception {
+		local.delete ();
+	}
+
+	public void testGetToPath () throws Exception {
+		byte[] contents = contents (100000);
+		files.put ("/d/plain", contents);
+
+		long written = channel.get ("/d/plain", local.toPath (), null, ChannelSftpExtDM.OVERWRITE);
+
+		assertEquals (contents.length, written);
+		assertTrue (Arrays.equals (contents, Files.readAllBytes (local.toPath ())));
+	}
+
+	public void testGetToPathUnquotesBackslashOnce () throws Exception {
+		byte[] contents = contents (1000);
+		files.put ("/d/a\\b", contents);
+		files.put ("/d/ab", new byte[1]);
+
+		channel.get ("/d/a\\\\b", local.toPath (), null, ChannelSftpExtDM.OVERWRITE);
+
+		assertTrue (Arrays.equals (contents, Files.readAllBytes (local.toPath ())));
+		assertTrue (session.getPaths ().contains ("OPEN /d/a\\b"));
+		assertFalse (session.getPaths ().contains ("OPEN /d/ab"));
+	}
+
+	public void testGetToPathDoesNotGlobQuotedWildcard () throws Exception {
+		byte[] contents = contents (1000);
+		files.put ("/d/x*", contents);
+		files.put ("/d/xy", new byte[1]);
+
+		channel.get ("/d/x\\*", local.toPath (), null, ChannelSftpExtDM.OVERWRITE);
+
+		assertTrue (Arrays.equals (contents, Files.readAllBytes (local.toPath ())));
+		for (String path : session.getPaths ()) {
+			assertFalse (path, path.startsWith ("OPENDIR"));
+		}
+	}
+
+	public void testGetToPathResumes () throws Exception {
+		byte[] contents = contents (50000);
+		files.put ("/d/plain", contents);
+		Files.write (local.toPath (), Arrays.copyOf (contents, 20000));
+
+		long written = channel.get ("/d/plain", local.toPath (), null, ChannelSftpExtDM.RESUME);
+
+		assertEquals (30000, written);
+		assertTrue (Arrays.equals (contents, Files.readAllBytes (local.toPath ())));
+	}
+
+	private static byte[] contents (int length) {
+		byte[] contents = new byte[length];
+		for (int i = 0; i < length; i++) {
+			contents[i] = (byte) (i * 31 + i / 256);
+		}
+		return contents;
+	}
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jcraft.jsch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A session that does not connect anywhere: the SFTP packets a
+ * ChannelSftpExtDM sends are answered in the calling thread by an SFTP v3
+ * server serving regular files from a map. The paths the channel sends are
+ * recorded, so tests can check how names are quoted
+ *
+ * @author Dmitriy Merkushov
+ */
+public class FakeSftpSession extends Session {
+
+	private static final int SSH_FXP_INIT = 1;
+	private static final int SSH_FXP_VERSION = 2;
+	private static final int SSH_FXP_OPEN = 3;
+	private static final int SSH_FXP_CLOSE = 4;
+	private static final int SSH_FXP_READ = 5;
+	private static final int SSH_FXP_LSTAT = 7;
+	private static final int SSH_FXP_FSTAT = 8;
+	private static final int SSH_FXP_OPENDIR = 11;
+	private static final int SSH_FXP_REALPATH = 16;
+	private static final int SSH_FXP_STAT = 17;
+	private static final int SSH_FXP_STATUS = 101;
+	private static final int SSH_FXP_HANDLE = 102;
+	private static final int SSH_FXP_DATA = 103;
+	private static final int SSH_FXP_NAME = 104;
+	private static final int SSH_FXP_ATTRS = 105;
+
+	private static final int SSH_FX_OK = 0;
+	private static final int SSH_FX_EOF = 1;
+	private static final int SSH_FX_NO_SUCH_FILE = 2;
+	private static final int SSH_FX_OP_UNSUPPORTED = 8;
+
+	private final Map<String, byte[]> files;
+	private final Map<String, String> handles = new HashMap<> ();
+	private final List<String> paths = new ArrayList<> ();
+	private int nextHandle = 0;
+	private Channel starting = null;
+
+	/**
+	 * @param files contents by absolute path, as the server sees them
+	 */
+	public FakeSftpSession (Map<String, byte[]> files) throws JSchException {
+		super (new JSch (), "user", "localhost", 22);
+		this.files = files;
+	}
+
+	/**
+	 * @return a started channel talking to this session
+	 */
+	public ChannelSftpExtDM openSftpChannel () throws JSchException {
+		ChannelSftpExtDM channel = new ChannelSftpExtDM ();
+		channel.setSession (this);
+		channel.io = new IO ();
+		channel.setRemotePacketSize (1024 * 1024);
+		channel.connected = true;
+		starting = channel;
+		channel.start ();
+		starting = null;
+		return channel;
+	}
+
+	/**
+	 * @return the paths sent with the requests so far, as
+	 * "REQUEST path"
+	 */
+	public synchronized List<String> getPaths () {
+		return new ArrayList<> (paths);
+	}
+
+	@Override
+	public boolean isConnected () {
+		return true;
+	}
+
+	/**
+	 * Channel requests, such as the one for the sftp subsystem, succeed
+	 */
+	@Override
+	public void write (Packet packet) throws Exception {
+		if (starting != null) {
+			starting.reply = 1;
+		}
+	}
+
+	@Override
+	void write (Packet packet, Channel c, int length) throws Exception {
+		// SSH_MSG_CHANNEL_DATA, recipient and data length come before the SFTP
+		// packet
+		Buffer request = new Buffer (Arrays.copyOfRange (packet.buffer.buffer, 14, packet.buffer.index));
+		byte[] response = answer (request);
+		c.write (response, 0, response.length);
+	}
+
+	private synchronized byte[] answer (Buffer request) throws IOException {
+		request.getInt ();
+		int type = request.getByte ();
+		if (type == SSH_FXP_INIT) {
+			return packet (SSH_FXP_VERSION, 3, new byte[0]);
+		}
+
+		int id = request.getInt ();
+		String path;
+		byte[] contents;
+		switch (type) {
+			case SSH_FXP_REALPATH:
+				path = record ("REALPATH", request);
+				if (path.isEmpty () || path.equals (".")) {
+					return name (id, "/");
+				}
+				return exists (path) ? name (id, path) : status (id, SSH_FX_NO_SUCH_FILE);
+			case SSH_FXP_STAT:
+			case SSH_FXP_LSTAT:
+				path = record (type == SSH_FXP_STAT ? "STAT" : "LSTAT", request);
+				contents = files.get (path);
+				return contents == null ? status (id, SSH_FX_NO_SUCH_FILE) : attrs (id, contents);
+			case SSH_FXP_OPEN:
+				path = record ("OPEN", request);
+				if (!files.containsKey (path)) {
+					return status (id, SSH_FX_NO_SUCH_FILE);
+				}
+				String handle = String.valueOf (nextHandle++);
+				handles.put (handle, path);
+				return string (SSH_FXP_HANDLE, id, handle.getBytes ("UTF-8"));
+			case SSH_FXP_FSTAT:
+				return attrs (id, files.get (handles.get (handle (request))));
+			case SSH_FXP_READ:
+				contents = files.get (handles.get (handle (request)));
+				long offset = request.getLong ();
+				int len = request.getInt ();
+				if (offset >= contents.length) {
+					return status (id, SSH_FX_EOF);
+				}
+				int end = (int) Math.min (contents.length, offset + len);
+				return string (SSH_FXP_DATA, id, Arrays.copyOfRange (contents, (int) offset, end));
+			case SSH_FXP_CLOSE:
+				handles.remove (handle (request));
+				return status (id, SSH_FX_OK);
+			case SSH_FXP_OPENDIR:
+				record ("OPENDIR", request);
+				return status (id, SSH_FX_NO_SUCH_FILE);
+			default:
+				return status (id, SSH_FX_OP_UNSUPPORTED);
+		}
+	}
+
+	/**
+	 * @return whether the path is a file or a directory above one
+	 */
+	private boolean exists (String path) {
+		for (String file : files.keySet ()) {
+			if (file.equals (path) || file.startsWith (path + "/")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String record (String requestName, Buffer request) throws IOException {
+		String path = new String (request.getString (), "UTF-8");
+		paths.add (requestName + " " + path);
+		return path;
+	}
+
+	private static String handle (Buffer request) throws IOException {
+		return new String (request.getString (), "UTF-8");
+	}
+
+	private static byte[] status (int id, int code) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream ();
+		DataOutputStream out = new DataOutputStream (body);
+		out.writeInt (code);
+		out.writeInt (0);	// message
+		out.writeInt (0);	// language tag
+		return packet (SSH_FXP_STATUS, id, body.toByteArray ());
+	}
+
+	private static byte[] string (int type, int id, byte[] data) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream ();
+		DataOutputStream out = new DataOutputStream (body);
+		out.writeInt (data.length);
+		out.write (data);
+		return packet (type, id, body.toByteArray ());
+	}
+
+	private static byte[] attrs (int id, byte[] contents) throws IOException {
+		return packet (SSH_FXP_ATTRS, id, attrs (contents.length));
+	}
+
+	private static byte[] name (int id, String path) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream ();
+		DataOutputStream out = new DataOutputStream (body);
+		byte[] pathb = path.getBytes ("UTF-8");
+		out.writeInt (1);
+		out.writeInt (pathb.length);
+		out.write (pathb);
+		out.writeInt (pathb.length);	// long name
+		out.write (pathb);
+		out.write (attrs (0));
+		return packet (SSH_FXP_NAME, id, body.toByteArray ());
+	}
+
+	/**
+	 * Size, permissions of a regular file, and times
+	 */
+	private static byte[] attrs (long size) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream ();
+		DataOutputStream out = new DataOutputStream (body);
+		out.writeInt (SftpATTRS.SSH_FILEXFER_ATTR_SIZE | SftpATTRS.SSH_FILEXFER_ATTR_PERMISSIONS | SftpATTRS.SSH_FILEXFER_ATTR_ACMODTIME);
+		out.writeLong (size);
+		out.writeInt (0100644);
+		out.writeInt (1000000000);
+		out.writeInt (1000000000);
+		return body.toByteArray ();
+	}
+
+	/**
+	 * @param id the request id, or the version for SSH_FXP_VERSION
+	 */
+	private static byte[] packet (int type, int id, byte[] body) throws IOException {
+		ByteArrayOutputStream packet = new ByteArrayOutputStream ();
+		DataOutputStream out = new DataOutputStream (packet);
+		out.writeInt (1 + 4 + body.length);
+		out.writeByte (type);
+		out.writeInt (id);
+		out.write (body);
+		return packet.toByteArray ();
+	}
+}
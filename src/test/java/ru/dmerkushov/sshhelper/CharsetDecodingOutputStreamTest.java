@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/**
+ * @author Dmitriy Merkushov
+ */
+public class CharsetDecodingOutputStreamTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName ("UTF-8");
+
+	public void testMultibyteCharacterSplitAcrossWrites () throws Exception {
+		// Cyrillic: 2 bytes, euro sign: 3 bytes, G clef: 4 bytes
+		String text = "\u043f\u0440\u0438\u0432\u0435\u0442 \u20ac \ud834\udd1e";
+		byte[] bytes = text.getBytes (UTF8);
+
+		for (int split = 1; split < bytes.length; split++) {
+			StringBuilder sb = new StringBuilder ();
+			CharsetDecodingOutputStream out = new CharsetDecodingOutputStream (sb, UTF8);
+			out.write (bytes, 0, split);
+			out.write (bytes, split, bytes.length - split);
+			out.close ();
+			assertEquals ("split at " + split, text, sb.toString ());
+		}
+	}
+
+	public void testSingleByteWrites () throws Exception {
+		String text = "\u20ac\u20ac\u20ac";
+		StringBuilder sb = new StringBuilder ();
+		CharsetDecodingOutputStream out = new CharsetDecodingOutputStream (sb, UTF8);
+		for (byte b : text.getBytes (UTF8)) {
+			out.write (b);
+		}
+		out.close ();
+		assertEquals (text, sb.toString ());
+	}
+
+	public void testLargerThanBuffer () throws Exception {
+		StringBuilder expected = new StringBuilder ();
+		Random random = new Random (1);
+		while (expected.length () < CharsetDecodingOutputStream.BUFFER_SIZE * 3) {
+			expected.append (random.nextBoolean () ? 'a' : '\u0436');
+		}
+		byte[] bytes = expected.toString ().getBytes (UTF8);
+
+		StringBuilder sb = new StringBuilder ();
+		CharsetDecodingOutputStream out = new CharsetDecodingOutputStream (sb, UTF8);
+		int off = 0;
+		while (off < bytes.length) {
+			int len = Math.min (bytes.length - off, 1 + random.nextInt (1000));
+			out.write (bytes, off, len);
+			off += len;
+		}
+		out.close ();
+		assertEquals (expected.toString (), sb.toString ());
+	}
+
+	public void testTruncatedSequenceReplacedOnClose () throws Exception {
+		byte[] euro = "\u20ac".getBytes (UTF8);
+		StringBuilder sb = new StringBuilder ();
+		CharsetDecodingOutputStream out = new CharsetDecodingOutputStream (sb, UTF8);
+		out.write ('a');
+		out.write (euro, 0, 2);
+		assertEquals ("a", sb.toString ());
+		out.close ();
+		assertEquals (new String (new byte[]{'a', euro[0], euro[1]}, UTF8), sb.toString ());
+	}
+
+	public void testWriteAfterClose () throws Exception {
+		CharsetDecodingOutputStream out = new CharsetDecodingOutputStream (new StringBuilder (), UTF8);
+		out.close ();
+		try {
+			out.write ('x');
+			fail ("write after close must fail");
+		} catch (IOException ex) {
+		}
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * @author Dmitriy Merkushov
+ */
+public class RemoteChecksumsTest extends TestCase {
+
+	private final Map<String, String> result = new HashMap<> ();
+
+	public void testTextMode () {
+		RemoteChecksums.parseLine ("d41d8cd98f00b204e9800998ecf8427e  /tmp/empty file", result);
+		assertEquals ("d41d8cd98f00b204e9800998ecf8427e", result.get ("/tmp/empty file"));
+	}
+
+	public void testBinaryMode () {
+		RemoteChecksums.parseLine ("D41D8CD98F00B204E9800998ECF8427E */tmp/a", result);
+		assertEquals ("d41d8cd98f00b204e9800998ecf8427e", result.get ("/tmp/a"));
+	}
+
+	public void testEscapedFilename () {
+		RemoteChecksums.parseLine ("\\0123abcd  /tmp/a\\\\b\\nc", result);
+		assertEquals ("0123abcd", result.get ("/tmp/a\\b\nc"));
+	}
+
+	public void testFilenameWithLeadingSpace () {
+		RemoteChecksums.parseLine ("0123abcd   leading", result);
+		assertEquals ("0123abcd", result.get (" leading"));
+	}
+
+	public void testMalformedLinesIgnored () {
+		RemoteChecksums.parseLine ("", result);
+		RemoteChecksums.parseLine ("0123abcd", result);
+		RemoteChecksums.parseLine (" 0123abcd  /tmp/a", result);
+		RemoteChecksums.parseLine ("0123abcd ", result);
+		assertTrue (result.toString (), result.isEmpty ());
+	}
+
+	public void testShellQuote () {
+		assertEquals ("'plain'", RemoteChecksums.shellQuote ("plain"));
+		assertEquals ("'it'\\''s'", RemoteChecksums.shellQuote ("it's"));
+	}
+}
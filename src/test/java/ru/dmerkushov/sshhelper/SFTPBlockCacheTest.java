@@ -0,0 +1,110 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelSftpExtDM;
+import com.jcraft.jsch.FakeSftpSession;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * @author Dmitriy Merkushov
+ */
+public class SFTPBlockCacheTest extends TestCase {
+
+	private final Map<String, byte[]> files = new HashMap<> ();
+	private FakeSftpSession session;
+	private ChannelSftpExtDM channel;
+	private SFTPBlockCache cache;
+
+	@Override
+	protected void setUp () throws Exception {
+		session = new FakeSftpSession (files);
+		channel = session.openSftpChannel ();
+		cache = new SFTPBlockCache (1024 * 1024, 4096);
+	}
+
+	public void testReadEscapedNameAsWithoutCache () throws Exception {
+		byte[] contents = contents (10000);
+		files.put ("/d/a\\b*", contents);
+		files.put ("/d/ab", new byte[10000]);
+
+		byte[] cached = new byte[3000];
+		assertEquals (3000, cache.read (channel, "/d/a\\\\b\\*", 5000, cached, 0, 3000));
+		byte[] direct = SSHHelper.readBinaryFileRangeFromSFTP (channel, "/d/a\\\\b\\*", 5000, 3000);
+
+		assertTrue (Arrays.equals (Arrays.copyOfRange (contents, 5000, 8000), cached));
+		assertTrue (Arrays.equals (direct, cached));
+	}
+
+	public void testNameResolvedOnce () throws Exception {
+		files.put ("/d/file", contents (10000));
+
+		byte[] dst = new byte[100];
+		cache.read (channel, "/d/file", 0, dst, 0, 100);
+		cache.read (channel, "/d/file", 0, dst, 0, 100);
+		cache.read (channel, "/d/file", 6000, dst, 0, 100);
+
+		assertEquals (1, count ("REALPATH /d/file"));
+		assertEquals (2, cache.getMisses ());
+		assertEquals (1, cache.getHits ());
+	}
+
+	public void testRelativeAndAbsoluteNamesShareBlocks () throws Exception {
+		byte[] contents = contents (10000);
+		files.put ("/d/file", contents);
+
+		byte[] dst = new byte[100];
+		cache.read (channel, "/d/file", 0, dst, 0, 100);
+		cache.read (channel, "d/file", 0, dst, 0, 100);
+
+		assertEquals (1, cache.getMisses ());
+		assertEquals (1, cache.getHits ());
+		assertTrue (Arrays.equals (Arrays.copyOf (contents, 100), dst));
+	}
+
+	public void testInvalidateForgetsResolution () throws Exception {
+		files.put ("/d/file", contents (10000));
+
+		byte[] dst = new byte[100];
+		cache.read (channel, "/d/file", 0, dst, 0, 100);
+		cache.invalidate (channel, "/d/file");
+		cache.read (channel, "/d/file", 0, dst, 0, 100);
+
+		assertEquals (2, count ("REALPATH /d/file"));
+		assertEquals (2, cache.getMisses ());
+	}
+
+	private int count (String request) {
+		int count = 0;
+		for (String path : session.getPaths ()) {
+			if (path.equals (request)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static byte[] contents (int length) {
+		byte[] contents = new byte[length];
+		for (int i = 0; i < length; i++) {
+			contents[i] = (byte) (i * 31 + i / 256);
+		}
+		return contents;
+	}
+}
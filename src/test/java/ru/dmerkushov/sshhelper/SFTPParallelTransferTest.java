@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.JSch;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import junit.framework.TestCase;
+
+/**
+ * @author Dmitriy Merkushov
+ */
+public class SFTPParallelTransferTest extends TestCase {
+
+	private SFTPParallelTransfer transfer;
+
+	@Override
+	protected void setUp () throws Exception {
+		transfer = new SFTPParallelTransfer (new JSch ().getSession ("user", "localhost", 22), null);
+		transfer.setSegments (4);
+		transfer.setMinSegmentSize (100);
+	}
+
+	public void testSplitCoversTheFile () throws Exception {
+		for (long size : new long[]{1, 99, 100, 101, 399, 400, 401, 1000003}) {
+			List<long[]> segments = transfer.split (size);
+			assertTrue ("size " + size, segments.size () <= 4);
+
+			long offset = 0;
+			for (long[] segment : segments) {
+				assertEquals ("size " + size, offset, segment[0]);
+				assertTrue ("size " + size, segment[1] > 0);
+				offset += segment[1];
+			}
+			assertEquals (size, offset);
+		}
+	}
+
+	public void testSplitRespectsMinSegmentSize () throws Exception {
+		assertEquals (1, transfer.split (100).size ());
+		assertEquals (2, transfer.split (101).size ());
+		assertEquals (4, transfer.split (10000).size ());
+	}
+
+	public void testSplitEmptyFile () throws Exception {
+		List<long[]> segments = transfer.split (0);
+		assertEquals (1, segments.size ());
+		assertEquals (0, segments.get (0)[0]);
+		assertEquals (0, segments.get (0)[1]);
+	}
+
+	public void testRunSegmentsSums () throws Exception {
+		List<Callable<Long>> tasks = new ArrayList<> ();
+		for (long i = 1; i <= 4; i++) {
+			final long result = i;
+			tasks.add (new Callable<Long> () {
+				@Override
+				public Long call () {
+					return result;
+				}
+			});
+		}
+		AtomicBoolean cancelled = new AtomicBoolean ();
+		assertEquals (10, transfer.runSegments (tasks, cancelled));
+		assertFalse (cancelled.get ());
+	}
+
+	public void testFailureCancelsAndAwaitsTheOthers () throws Exception {
+		final AtomicBoolean cancelled = new AtomicBoolean ();
+		final CountDownLatch started = new CountDownLatch (1);
+		final AtomicBoolean siblingEnded = new AtomicBoolean ();
+
+		List<Callable<Long>> tasks = new ArrayList<> ();
+		// Submitted first, but fails only after the second one: the failure
+		// must not wait for it
+		tasks.add (new Callable<Long> () {
+			@Override
+			public Long call () throws Exception {
+				started.countDown ();
+				try {
+					while (!cancelled.get ()) {
+						Thread.sleep (10);
+					}
+					// Still busy for a while after the cancel
+					Thread.sleep (200);
+					return 0L;
+				} finally {
+					siblingEnded.set (true);
+				}
+			}
+		});
+		tasks.add (new Callable<Long> () {
+			@Override
+			public Long call () throws Exception {
+				started.await ();
+				throw new SSHHelperException ("segment failed");
+			}
+		});
+
+		try {
+			transfer.runSegments (tasks, cancelled);
+			fail ("the failure of a segment must be thrown");
+		} catch (SSHHelperException ex) {
+			assertEquals ("segment failed", ex.getMessage ());
+		}
+		assertTrue (cancelled.get ());
+		assertTrue ("runSegments returned while a segment was still running", siblingEnded.get ());
+	}
+}
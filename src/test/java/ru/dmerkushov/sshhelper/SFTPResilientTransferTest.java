@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.JSchException;
+import java.io.FileNotFoundException;
+import java.net.ConnectException;
+import junit.framework.TestCase;
+
+/**
+ * @author Dmitriy Merkushov
+ */
+public class SFTPResilientTransferTest extends TestCase {
+
+	public void testSocketFailuresAreRetried () {
+		ConnectException refused = new ConnectException ("Connection refused");
+		assertTrue (SFTPResilientTransfer.isNetworkFailure (new SSHHelperException (new JSchException (refused.toString (), refused))));
+		assertTrue (SFTPResilientTransfer.isNetworkFailure (new SSHHelperException (new JSchException ("timeout: socket is not established"))));
+		assertTrue (SFTPResilientTransfer.isNetworkFailure (new SSHHelperException (new JSchException ("Session.connect: java.io.IOException: End of IO Stream Read"))));
+		assertTrue (SFTPResilientTransfer.isNetworkFailure (new SSHHelperException (new JSchException ("Session.connect: java.net.SocketException: Connection reset"))));
+	}
+
+	public void testPermanentFailuresAreNotRetried () {
+		assertFalse (SFTPResilientTransfer.isNetworkFailure (new SSHHelperException (new JSchException ("Auth fail"))));
+		assertFalse (SFTPResilientTransfer.isNetworkFailure (new SSHHelperException (new JSchException ("UnknownHostKey: example.com. RSA key fingerprint is 00:11"))));
+		FileNotFoundException missing = new FileNotFoundException ("/home/user/.ssh/id_rsa (No such file or directory)");
+		assertFalse (SFTPResilientTransfer.isNetworkFailure (new SSHHelperException (new JSchException (missing.toString (), missing))));
+		assertFalse (SFTPResilientTransfer.isNetworkFailure (new SSHHelperException ("Charset x is not supported")));
+	}
+}
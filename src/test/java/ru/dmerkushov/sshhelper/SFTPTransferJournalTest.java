@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * @author Dmitriy Merkushov
+ */
+public class SFTPTransferJournalTest extends TestCase {
+
+	private static final String SUM_A = repeat ('a', 64);
+	private static final String SUM_B = repeat ('b', 64);
+	private static final String SUM_C = repeat ('c', 64);
+
+	private File file;
+
+	@Override
+	protected void setUp () throws Exception {
+		file = File.createTempFile ("journal", ".txt");
+		file.delete ();
+	}
+
+	@Override
+	protected void tearDown () throws Exception {
+		file.delete ();
+		new File (file.getPath () + ".tmp").delete ();
+	}
+
+	private SFTPTransferJournal journal (long mtime) {
+		return new SFTPTransferJournal (file, "get", "/remote/file", 1000, mtime, 100);
+	}
+
+	public void testNoJournal () throws Exception {
+		assertTrue (journal (1).load ().isEmpty ());
+	}
+
+	public void testChunksRecordedOutOfOrder () throws Exception {
+		SFTPTransferJournal journal = journal (1);
+		journal.rewrite (new LinkedHashMap<Long, String> ());
+		journal.done (3, SUM_A);
+		journal.done (0, SUM_B);
+		journal.done (7, SUM_C);
+		journal.close ();
+
+		Map<Long, String> chunks = journal (1).load ();
+		assertEquals (Arrays.asList (3L, 0L, 7L), Arrays.asList (chunks.keySet ().toArray ()));
+		assertEquals (SUM_B, chunks.get (0L));
+		assertEquals (Arrays.asList (0L, 7L), SFTPTransferJournal.lastRecorded (chunks, 2));
+		assertEquals (Arrays.asList (3L, 0L, 7L), SFTPTransferJournal.lastRecorded (chunks, 5));
+	}
+
+	public void testRewriteKeepsGivenChunks () throws Exception {
+		SFTPTransferJournal journal = journal (1);
+		journal.rewrite (new LinkedHashMap<Long, String> ());
+		journal.done (1, SUM_A);
+		journal.done (2, SUM_B);
+
+		Map<Long, String> kept = new LinkedHashMap<> ();
+		kept.put (2L, SUM_B);
+		journal.rewrite (kept);
+		journal.done (4, SUM_C);
+		journal.close ();
+
+		Map<Long, String> chunks = journal (1).load ();
+		assertEquals (Arrays.asList (2L, 4L), Arrays.asList (chunks.keySet ().toArray ()));
+	}
+
+	public void testOtherVersionOfTheSourceIsIgnored () throws Exception {
+		SFTPTransferJournal journal = journal (1);
+		journal.rewrite (new LinkedHashMap<Long, String> ());
+		journal.done (0, SUM_A);
+		journal.close ();
+
+		assertTrue (journal (2).load ().isEmpty ());
+		assertTrue (new SFTPTransferJournal (file, "put", "/remote/file", 1000, 1, 100).load ().isEmpty ());
+	}
+
+	public void testTornLastLineIgnored () throws Exception {
+		SFTPTransferJournal journal = journal (1);
+		journal.rewrite (new LinkedHashMap<Long, String> ());
+		journal.done (0, SUM_A);
+		journal.close ();
+		try (FileOutputStream out = new FileOutputStream (file, true)) {
+			out.write (("done 1 " + SUM_B.substring (0, 20)).getBytes ("UTF-8"));
+		}
+
+		Map<Long, String> chunks = journal (1).load ();
+		assertEquals (1, chunks.size ());
+		assertEquals (SUM_A, chunks.get (0L));
+	}
+
+	public void testDelete () throws Exception {
+		SFTPTransferJournal journal = journal (1);
+		journal.rewrite (new LinkedHashMap<Long, String> ());
+		journal.done (0, SUM_A);
+		journal.delete ();
+		assertFalse (file.exists ());
+		assertTrue (journal (1).load ().isEmpty ());
+	}
+
+	private static String repeat (char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill (chars, c);
+		return new String (chars);
+	}
+}
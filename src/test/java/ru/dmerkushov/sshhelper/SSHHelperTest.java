@@ -0,0 +1,88 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import com.jcraft.jsch.ChannelSftpExtDM;
+import com.jcraft.jsch.FakeSftpSession;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * @author Dmitriy Merkushov
+ */
+public class SSHHelperTest extends TestCase {
+
+	private final Map<String, byte[]> files = new HashMap<> ();
+	private ChannelSftpExtDM channel;
+	private File local;
+
+	@Override
+	protected void setUp () throws Exception {
+		channel = new FakeSftpSession (files).openSftpChannel ();
+		local = File.createTempFile ("copy", ".bin");
+		local.delete ();
+	}
+
+	@Override
+	protected void tearDown () throws Exception {
+		local.delete ();
+	}
+
+	public void testCopyFileFromSFTPToLocalEscapedBackslash () throws Exception {
+		byte[] contents = contents (70000);
+		files.put ("/d/a\\b", contents);
+		files.put ("/d/ab", new byte[1]);
+
+		assertSameAsStreamed ("/d/a\\\\b", contents);
+	}
+
+	public void testCopyFileFromSFTPToLocalEscapedWildcards () throws Exception {
+		byte[] contents = contents (1000);
+		files.put ("/d/x*?", contents);
+		files.put ("/d/xyz", new byte[1]);
+
+		assertSameAsStreamed ("/d/x\\*\\?", contents);
+	}
+
+	public void testCopyFileFromSFTPToLocalQuotedByTreeTransfer () throws Exception {
+		byte[] contents = contents (1000);
+		files.put ("/d/a\\b*", contents);
+
+		assertSameAsStreamed (SFTPTreeTransfer.quoteRemotePath ("/d/a\\b*"), contents);
+	}
+
+	/**
+	 * The copy to a local file and the streamed read must take the remote
+	 * name the same way
+	 */
+	private void assertSameAsStreamed (String remoteFilename, byte[] contents) throws Exception {
+		SSHHelper.copyFileFromSFTPToLocal (channel, remoteFilename, local.getPath ());
+		assertTrue (Arrays.equals (contents, Files.readAllBytes (local.toPath ())));
+		assertTrue (Arrays.equals (contents, SSHHelper.readBinaryFileFromSFTP (channel, remoteFilename)));
+	}
+
+	private static byte[] contents (int length) {
+		byte[] contents = new byte[length];
+		for (int i = 0; i < length; i++) {
+			contents[i] = (byte) (i * 31 + i / 256);
+		}
+		return contents;
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * @author Dmitriy Merkushov
+ */
+public class SSHLineOutputStreamTest extends TestCase {
+
+	private final List<String> lines = new ArrayList<> ();
+
+	private final SSHLineListener collector = new SSHLineListener () {
+		@Override
+		public void line (String line) throws IOException {
+			lines.add (line);
+		}
+	};
+
+	public void testLinesSplitAcrossWrites () throws Exception {
+		SSHLineOutputStream out = new SSHLineOutputStream (collector, "UTF-8");
+		out.write ("fir".getBytes ("UTF-8"));
+		out.write ("st\nsec".getBytes ("UTF-8"));
+		out.write ('o');
+		out.write ("nd\n\nthird".getBytes ("UTF-8"));
+		assertEquals (Arrays.asList ("first", "second", ""), lines);
+
+		out.close ();
+		assertEquals (Arrays.asList ("first", "second", "", "third"), lines);
+	}
+
+	public void testCarriageReturnDropped () throws Exception {
+		SSHLineOutputStream out = new SSHLineOutputStream (collector, "UTF-8");
+		out.write ("a\r\nb\r".getBytes ("UTF-8"));
+		out.write ('\n');
+		out.close ();
+		assertEquals (Arrays.asList ("a", "b"), lines);
+	}
+
+	public void testFlushDoesNotPassPartialLine () throws Exception {
+		SSHLineOutputStream out = new SSHLineOutputStream (collector, "UTF-8");
+		out.write ("partial".getBytes ("UTF-8"));
+		out.flush ();
+		assertTrue (lines.isEmpty ());
+		out.close ();
+		assertEquals (Arrays.asList ("partial"), lines);
+	}
+
+	public void testMultibyteCharacterSplitAcrossWrites () throws Exception {
+		byte[] bytes = "\u043f\u0440\u0438\u0432\u0435\u0442\n".getBytes ("UTF-8");
+		SSHLineOutputStream out = new SSHLineOutputStream (collector, "UTF-8");
+		for (byte b : bytes) {
+			out.write (new byte[]{b});
+		}
+		out.close ();
+		assertEquals (Arrays.asList ("\u043f\u0440\u0438\u0432\u0435\u0442"), lines);
+	}
+
+	public void testLongLineInPieces () throws Exception {
+		SSHLineOutputStream out = new SSHLineOutputStream (collector, "UTF-8", 4);
+		out.write ("abcdefghij\nxy".getBytes ("UTF-8"));
+		out.close ();
+		assertEquals (Arrays.asList ("abcd", "efgh", "ij", "xy"), lines);
+	}
+
+	public void testWriteAfterClose () throws Exception {
+		SSHLineOutputStream out = new SSHLineOutputStream (collector, "UTF-8");
+		out.close ();
+		try {
+			out.write ('x');
+			fail ("write after close must fail");
+		} catch (IOException ex) {
+		}
+	}
+}
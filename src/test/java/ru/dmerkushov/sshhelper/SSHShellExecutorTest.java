@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 dmerkushov.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ru.dmerkushov.sshhelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import junit.framework.TestCase;
+import ru.dmerkushov.oshelper.OSHelper.ProcessReturn;
+
+/**
+ * @author Dmitriy Merkushov
+ */
+public class SSHShellExecutorTest extends TestCase {
+
+	private static final Charset UTF8 = Charset.forName ("UTF-8");
+	private static final String PREFIX = "__SSHHELPER_abc123_";
+
+	/**
+	 * Stands in for the shell: when the script is flushed, writes the prepared
+	 * output into the executor in small pieces
+	 */
+	private static class FakeShell extends OutputStream {
+
+		final ByteArrayOutputStream script = new ByteArrayOutputStream ();
+		SSHShellExecutor executor;
+		String stdout = "";
+		String stderr = "";
+		int chunk = 1;
+		boolean endShell = false;
+
+		@Override
+		public void write (int b) {
+			script.write (b);
+		}
+
+		@Override
+		public void flush () throws IOException {
+			feed (executor.stderrSink, stderr);
+			feed (executor.stdoutSink, stdout);
+			if (endShell) {
+				executor.stderrSink.close ();
+			}
+		}
+
+		private void feed (OutputStream sink, String output) throws IOException {
+			byte[] bytes = output.getBytes (UTF8);
+			for (int off = 0; off < bytes.length; off += chunk) {
+				int len = Math.min (chunk, bytes.length - off);
+				if (len == 1) {
+					sink.write (bytes[off]);
+				} else {
+					sink.write (bytes, off, len);
+				}
+			}
+		}
+	}
+
+	private FakeShell shell;
+	private SSHShellExecutor executor;
+
+	@Override
+	protected void setUp () throws Exception {
+		shell = new FakeShell ();
+		executor = new SSHShellExecutor (UTF8, PREFIX, shell);
+		shell.executor = executor;
+	}
+
+	public void testPipelinedCommandsAreSplitByMarkers () throws Exception {
+		for (int chunk : new int[]{1, 3, 7, 1000}) {
+			setUp ();
+			shell.chunk = chunk;
+			int id = 1;
+			shell.stdout = PREFIX + id + "_START\n"
+					+ "line 1\nline 2\n"
+					+ "\n" + PREFIX + id + "_END_0\n"
+					+ PREFIX + (id + 1) + "_START\n"
+					+ "no trailing newline"
+					+ "\n" + PREFIX + (id + 1) + "_END_42\n";
+			shell.stderr = PREFIX + id + "_START\n"
+					+ "\n" + PREFIX + id + "_END\n"
+					+ PREFIX + (id + 1) + "_START\n"
+					+ "warning\n"
+					+ "\n" + PREFIX + (id + 1) + "_END\n";
+
+			List<ProcessReturn> results = executor.execute (Arrays.asList ("echo one", "false"));
+
+			assertEquals (2, results.size ());
+			assertEquals ("chunk " + chunk, 0, results.get (0).exitCode);
+			assertEquals ("chunk " + chunk, "line 1\nline 2\n", results.get (0).stdout);
+			assertEquals ("chunk " + chunk, "", results.get (0).stderr);
+			assertEquals ("chunk " + chunk, 42, results.get (1).exitCode);
+			assertEquals ("chunk " + chunk, "no trailing newline", results.get (1).stdout);
+			assertEquals ("chunk " + chunk, "warning\n", results.get (1).stderr);
+		}
+	}
+
+	public void testLinesLookingLikeOtherMarkersAreOutput () throws Exception {
+		String foreign = "__SSHHELPER_other_1_END_0\n";
+		shell.stdout = PREFIX + "1_START\n" + foreign + "\n" + PREFIX + "1_END_0\n";
+		shell.stderr = PREFIX + "1_START\n\n" + PREFIX + "1_END\n";
+
+		ProcessReturn result = executor.execute ("cat file");
+
+		assertEquals (0, result.exitCode);
+		assertEquals (foreign, result.stdout);
+	}
+
+	public void testScriptFramesEachCommand () throws Exception {
+		shell.stdout = PREFIX + "1_START\n\n" + PREFIX + "1_END_0\n";
+		shell.stderr = PREFIX + "1_START\n\n" + PREFIX + "1_END\n";
+
+		executor.execute ("ls -l # comment");
+
+		String script = new String (shell.script.toByteArray (), UTF8);
+		assertTrue (script, script.contains ("'" + PREFIX + "1_START'"));
+		assertTrue (script, script.contains ("{ ls -l # comment\n} < /dev/null\n"));
+		assertTrue (script, script.contains ("'" + PREFIX + "1_END'"));
+	}
+
+	public void testShellEndFailsPendingCommands () throws Exception {
+		shell.stdout = PREFIX + "1_START\npartial\n";
+		shell.stderr = PREFIX + "1_START\n";
+		shell.endShell = true;
+
+		try {
+			executor.execute ("exit");
+			fail ("a command left unfinished by the shell must fail");
+		} catch (SSHHelperException ex) {
+		}
+		assertFalse (executor.isOpen ());
+	}
+}